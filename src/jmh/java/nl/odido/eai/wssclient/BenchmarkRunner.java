@@ -0,0 +1,37 @@
+package nl.odido.eai.wssclient;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Runs the JMH benchmarks once per thread count, with the GC (allocation) profiler,
+ * and writes the results as JSON to target/jmh/results-{threads}t.json
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec [-Djmh.include=HotPathBenchmark.sign.*] [-Djmh.threads=1,2,4]
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        String include = args.length > 0 && !args[0].isBlank() ? args[0] : ".*";
+        String threads = args.length > 1 && !args[1].isBlank() ? args[1] : "1,max";
+
+        new File("target/jmh").mkdirs();
+        for (String t : threads.split(",")) {
+            int threadCount = "max".equals(t.trim()) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(t.trim());
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threadCount)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("target/jmh/results-" + threadCount + "t.json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
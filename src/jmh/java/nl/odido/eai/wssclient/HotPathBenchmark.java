@@ -0,0 +1,110 @@
+package nl.odido.eai.wssclient;
+
+import org.apache.wss4j.dom.handler.WSHandlerResult;
+import org.eclipse.jetty.util.ByteArrayOutputStream2;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the per-message hot paths: parse, render, sign, verify and the proxy request transform,
+ * with 1 KB, 100 KB and 10 MB envelopes. Run with {@link BenchmarkRunner}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class HotPathBenchmark {
+
+    /**
+     * The messages, shared by all threads. Set up per trial, so that the signature timestamps stay valid
+     */
+    @State(Scope.Benchmark)
+    public static class Messages {
+
+        @Param({"1024", "102400", "10485760"})
+        public int size;
+
+        WssUtils wss;
+        ProxyHandler proxyHandler;
+        byte[] message;
+        byte[] signed;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            wss = WssUtils.newWssUtils("./src/test/resources/wss_keystore.jks", "secret", "wsscert",
+                    "./src/test/resources/wss_truststore.jks", "secret", Collections.emptyList());
+            proxyHandler = new ProxyHandler(60, "http://localhost", wss, null);
+            message = envelope(new TestTools().readResourceFile("SoapInputMessage.xml"), size).getBytes(StandardCharsets.UTF_8);
+            signed = wss.signWSS(message);
+        }
+    }
+
+    /**
+     * A parsed message per thread: DOM trees are not safe for concurrent reads
+     */
+    @State(Scope.Thread)
+    public static class ParsedMessage {
+        Document document;
+
+        @Setup(Level.Trial)
+        public void setup(Messages messages) throws Exception {
+            document = XmlTools.parseXML(messages.signed);
+        }
+    }
+
+    /**
+     * Pad the body of the template envelope with copies of its content, up to about the given size in bytes
+     */
+    static String envelope(String template, int size) {
+        int start = template.indexOf("<soapenv:Body>") + "<soapenv:Body>".length();
+        int end = template.indexOf("</soapenv:Body>");
+        String content = template.substring(start, end);
+        int repeat = Math.max(0, (size - template.length()) / content.length());
+        return template.substring(0, end) + content.repeat(repeat) + template.substring(end);
+    }
+
+    @Benchmark
+    public Document parseXML(Messages messages) throws Exception {
+        return XmlTools.parseXML(messages.message);
+    }
+
+    @Benchmark
+    public int renderDOM(ParsedMessage parsed) throws Exception {
+        ByteArrayOutputStream2 out = new ByteArrayOutputStream2();
+        XmlTools.renderDOM(parsed.document, false, out);
+        return out.getCount();
+    }
+
+    @Benchmark
+    public byte[] signWSS(Messages messages) throws Exception {
+        return messages.wss.signWSS(messages.message);
+    }
+
+    @Benchmark
+    public WSHandlerResult verifyWSS(Messages messages) throws Exception {
+        return messages.wss.verifyWSS(messages.signed);
+    }
+
+    @Benchmark
+    public ByteBuffer proxyRequestTransform(Messages messages) throws Exception {
+        return messages.proxyHandler.signBody(new ByteArrayInputStream(messages.message), messages.message.length);
+    }
+}
@@ -0,0 +1,146 @@
+package nl.odido.eai.wssclient;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control in front of the proxy: limits the number of requests processed concurrently,
+ * lets a bounded number of requests wait for a free slot for a limited time, and sheds the rest.
+ * Waiting requests do not hold a thread: they get a future that completes when a slot is handed over.
+ * Does not use monitors, so it is safe for virtual threads
+ */
+public class AdmissionControl {
+
+    /**
+     * The request was not admitted, because the proxy is overloaded
+     */
+    public static class OverloadedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public OverloadedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Admission counters
+     * @param active Number of requests being processed
+     * @param queued Number of requests waiting for a slot
+     * @param admitted Total number of admitted requests
+     * @param shed Total number of requests rejected because the queue was full or the wait was too long
+     */
+    public record Stats(int active, int queued, long admitted, long shed) {}
+
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long maxQueueWaitMillis;
+    private final int retryAfterSeconds;
+    private final Semaphore permits;
+    private final Queue<CompletableFuture<Void>> waiting = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+
+    /**
+     * Create a new admission control
+     * @param maxConcurrent Maximum number of requests processed concurrently
+     * @param maxQueued Maximum number of requests waiting for a slot
+     * @param maxQueueWaitMillis Maximum time a request may wait, counted from its arrival at the server
+     * @param retryAfterSeconds Value of the Retry-After header of the responses to shed requests
+     */
+    public AdmissionControl(int maxConcurrent, int maxQueued, long maxQueueWaitMillis, int retryAfterSeconds) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.permits = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * Request a slot. Every successful admission must be followed by a call to {@link #release()}
+     * @param arrivalMillis Time (epoch millis) the request arrived at the server, so that time spent
+     *                      in the server's task queue counts as waiting time
+     * @return A future that completes when the request is admitted, or completes exceptionally with
+     * an {@link OverloadedException} when the request is shed. Already completed if no waiting is needed
+     */
+    public CompletableFuture<Void> admit(long arrivalMillis) {
+        long remainingMillis = arrivalMillis + maxQueueWaitMillis - System.currentTimeMillis();
+        if (remainingMillis <= 0) {
+            return shed("Request waited too long in the server queue");
+        }
+        if (permits.tryAcquire()) {
+            admitted.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return shed("Request queue is full");
+        }
+
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        waiting.offer(waiter);
+        // a slot may have been released before the waiter was queued
+        if (permits.tryAcquire() && !waiter.complete(null)) {
+            release();
+        }
+        waiter.orTimeout(remainingMillis, TimeUnit.MILLISECONDS);
+        return waiter.handle((result, failure) -> {
+            if (waiting.remove(waiter)) {
+                queued.decrementAndGet();
+            }
+            if (failure instanceof TimeoutException) {
+                shed.increment();
+                throw new CompletionException(
+                        new OverloadedException("No slot available within " + maxQueueWaitMillis + " ms"));
+            }
+            admitted.increment();
+            return result;
+        });
+    }
+
+    /**
+     * Release the slot of an admitted request, handing it over to the longest waiting request if any
+     */
+    public void release() {
+        CompletableFuture<Void> waiter;
+        while ((waiter = waiting.poll()) != null) {
+            queued.decrementAndGet();
+            if (waiter.complete(null)) {
+                return;
+            }
+        }
+        permits.release();
+    }
+
+    private CompletableFuture<Void> shed(String reason) {
+        shed.increment();
+        return CompletableFuture.failedFuture(new OverloadedException(reason));
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public long getMaxQueueWaitMillis() {
+        return maxQueueWaitMillis;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public Stats getStats() {
+        return new Stats(maxConcurrent - permits.availablePermits(), queued.get(), admitted.sum(), shed.sum());
+    }
+}
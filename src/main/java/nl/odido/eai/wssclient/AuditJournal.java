@@ -0,0 +1,247 @@
+package nl.odido.eai.wssclient;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Payload audit journal of the proxy: appends sampled request/response pairs to segment files in a directory.
+ * Request threads only copy the (truncated) payloads and add them to a bounded lock-free queue; when the queue is full,
+ * the entry is dropped and counted, the request thread never waits for the disk. A background thread writes the entries
+ * in batches and syncs each batch to disk. Segments are rotated by size, the oldest are deleted.
+ * <p>
+ * Entry format (the payloads are raw bytes, their lengths are in the header line):
+ * <pre>
+ * === {seq} {timestamp} {path} status={status} request={written}/{total} response={written}/{total}
+ * {request bytes}
+ * {response bytes}
+ * </pre>
+ */
+public class AuditJournal implements AutoCloseable {
+
+    static Logger log = Logger.getLogger(AuditJournal.class.getName());
+
+    /**
+     * Journal counters
+     * @param recorded Number of entries queued
+     * @param dropped Number of entries dropped because the queue was full or the journal could not be written
+     * @param written Number of entries written to disk
+     */
+    public record Stats(long recorded, long dropped, long written) {}
+
+    private record Entry(long seq, Instant timestamp, String path, int status,
+                         byte[] request, long requestLength, byte[] response, long responseLength) {
+        long size() {
+            return request.length + response.length + 256L;
+        }
+    }
+
+    /**
+     * Maximum size of the payloads waiting to be written
+     */
+    static final long MAX_QUEUED_BYTES = 64L * 1024 * 1024;
+
+    private final Path directory;
+    private final double sampleRate;
+    private final int maxPayloadBytes;
+    private final long maxSegmentBytes;
+    private final int maxSegments;
+
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong seq = new AtomicLong();
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private FileChannel segment;
+    private OutputStream out;
+    private long segmentBytes;
+    private int segmentSeq;
+
+    /**
+     * Create a journal and start its writer thread
+     * @param directory Directory of the segment files, created if it does not exist
+     * @param sampleRate Fraction of the exchanges recorded, between 0 and 1
+     * @param maxPayloadBytes Maximum number of bytes recorded of each request and response; longer payloads are truncated
+     * @param maxSegmentBytes Size after which a new segment file is started
+     * @param maxSegments Maximum number of segment files kept
+     */
+    public AuditJournal(Path directory, double sampleRate, int maxPayloadBytes, long maxSegmentBytes, int maxSegments) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.sampleRate = sampleRate;
+        this.maxPayloadBytes = maxPayloadBytes;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegments = maxSegments;
+        writer = new Thread(this::writeLoop, "audit-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return Maximum number of bytes recorded of each request and response. A response spooled to a file must keep
+     * this many first bytes in memory (see {@link SpoolBuffer#SpoolBuffer(int, int)}), the journal does not read the file
+     */
+    public int getMaxPayloadBytes() {
+        return maxPayloadBytes;
+    }
+
+    /**
+     * @return True if the current exchange should be recorded
+     */
+    public boolean sample() {
+        return sampleRate >= 1.0 || (sampleRate > 0.0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+
+    /**
+     * Record an exchange. Copies at most the maximum payload size of the request and the response, does not block
+     * @param path Request path
+     * @param status HTTP status returned to the client
+     * @param request Signed request body; its position is not changed
+     * @param response Response body; its first bytes are copied from memory, a spool file is not read
+     */
+    public void record(String path, int status, ByteBuffer request, SpoolBuffer response) {
+        if (!running) {
+            return;
+        }
+        byte[] requestBytes = new byte[Math.min(request.remaining(), maxPayloadBytes)];
+        request.duplicate().get(requestBytes);
+        byte[] responseBytes = response.head(maxPayloadBytes);
+        Entry entry = new Entry(seq.incrementAndGet(), Instant.now(), path, status,
+                requestBytes, request.remaining(), responseBytes, response.size());
+        if (queuedBytes.addAndGet(entry.size()) > MAX_QUEUED_BYTES) {
+            queuedBytes.addAndGet(-entry.size());
+            dropped.increment();
+            return;
+        }
+        queue.add(entry);
+        recorded.increment();
+        LockSupport.unpark(writer);
+    }
+
+    public Stats getStats() {
+        return new Stats(recorded.sum(), dropped.sum(), written.sum());
+    }
+
+    /**
+     * Write the queued entries and stop the writer thread. If the calling thread is interrupted, it stops waiting
+     * for the writer (which still finishes the queue) and keeps its interrupt status
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        while (running || !queue.isEmpty()) {
+            Entry entry = queue.poll();
+            if (entry == null) {
+                sync();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+            queuedBytes.addAndGet(-entry.size());
+            try {
+                write(entry);
+                written.increment();
+            } catch (IOException e) {
+                dropped.increment();
+                log.log(Level.WARNING, "could not write the audit journal", e);
+                closeSegment();
+            }
+        }
+        sync();
+        closeSegment();
+    }
+
+    private void write(Entry entry) throws IOException {
+        if (out == null || segmentBytes >= maxSegmentBytes) {
+            openSegment();
+        }
+        byte[] header = ("=== " + entry.seq() + " " + entry.timestamp() + " " + entry.path() + " status=" + entry.status()
+                + " request=" + entry.request().length + "/" + entry.requestLength()
+                + " response=" + entry.response().length + "/" + entry.responseLength() + "\n").getBytes(StandardCharsets.UTF_8);
+        out.write(header);
+        out.write(entry.request());
+        out.write('\n');
+        out.write(entry.response());
+        out.write('\n');
+        segmentBytes += header.length + entry.request().length + entry.response().length + 2;
+    }
+
+    /**
+     * Flush the written entries and force them to disk, once per batch
+     */
+    private void sync() {
+        if (out != null) {
+            try {
+                out.flush();
+                segment.force(false);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "could not sync the audit journal", e);
+            }
+        }
+    }
+
+    private void openSegment() throws IOException {
+        sync();
+        closeSegment();
+        Path file = directory.resolve(String.format("audit-%d-%04d.log", System.currentTimeMillis(), segmentSeq++ % 10000));
+        segment = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        out = new BufferedOutputStream(Channels.newOutputStream(segment), 256 * 1024);
+        segmentBytes = 0;
+        deleteOldSegments();
+    }
+
+    private void closeSegment() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "could not close the audit journal", e);
+            }
+            out = null;
+            segment = null;
+        }
+    }
+
+    private void deleteOldSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "audit-*.log")) {
+            files.forEach(segments::add);
+        }
+        Collections.sort(segments);
+        for (int i = 0; i < segments.size() - maxSegments; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+}
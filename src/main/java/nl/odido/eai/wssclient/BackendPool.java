@@ -0,0 +1,233 @@
+package nl.odido.eai.wssclient;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A pool of equivalent back-end nodes, with load balancing and outlier ejection.
+ * A node is ejected for a while after a number of consecutive failures (connection errors, 5xx responses),
+ * and when the active health check marks it down. The ejection time grows with every ejection, and is reset
+ * when the node succeeds again after being back for one ejection time. If no node is available, all nodes
+ * are used: a request to a doubtful node is better than no request. Lock-free: the node state is kept in atomics
+ */
+public class BackendPool {
+
+    static Logger log = Logger.getLogger(BackendPool.class.getName());
+
+    /**
+     * How a node is chosen
+     */
+    public enum Strategy {
+        /**
+         * The node with the fewest requests in progress
+         */
+        LEAST_OUTSTANDING,
+        /**
+         * The node with the lowest expected latency: the moving average of its latency times its requests in progress + 1.
+         * A node without samples yet is assumed to have the mean latency of the others
+         */
+        EWMA_LATENCY
+    }
+
+    /**
+     * A back-end node
+     */
+    public static class Backend {
+        private final String url;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicInteger ejections = new AtomicInteger();
+        private final AtomicLong ewmaLatencyNanos = new AtomicLong();
+        private volatile long ejectedUntilNanos;
+        private volatile boolean healthy = true;
+
+        Backend(String url) {
+            this.url = url;
+            this.ejectedUntilNanos = System.nanoTime();
+        }
+
+        /**
+         * @return Base url of the node (e.g. https://some.server:1234)
+         */
+        public String url() {
+            return url;
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        public long getEwmaLatencyNanos() {
+            return ewmaLatencyNanos.get();
+        }
+
+        /**
+         * @return Number of ejections since the node was last reset (healthy for a while)
+         */
+        public int getEjections() {
+            return ejections.get();
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        boolean isAvailable(long now) {
+            return healthy && now - ejectedUntilNanos >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private final Backend[] backends;
+    private final String target;
+    private final Strategy strategy;
+    private final int maxConsecutiveFailures;
+    private final long baseEjectionNanos;
+
+    /**
+     * @param urls Base urls of the nodes
+     * @param strategy How a node is chosen
+     * @param maxConsecutiveFailures Number of consecutive failures after which a node is ejected
+     * @param baseEjectionMillis Ejection time; multiplied by the number of times the node was ejected before (up to 10)
+     */
+    public BackendPool(List<String> urls, Strategy strategy, int maxConsecutiveFailures, long baseEjectionMillis) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("A back-end pool needs at least one url");
+        }
+        this.backends = urls.stream().map(Backend::new).toArray(Backend[]::new);
+        this.target = String.join(",", urls);
+        this.strategy = strategy;
+        this.maxConsecutiveFailures = maxConsecutiveFailures;
+        this.baseEjectionNanos = baseEjectionMillis * 1_000_000;
+    }
+
+    public List<Backend> getBackends() {
+        return List.of(backends);
+    }
+
+    /**
+     * @return The base urls of the nodes, comma separated: identifies the pool that a request is routed to
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * Choose a node for a request, and count the request as outstanding on it.
+     * Every call must be followed by a call to {@link #onComplete(Backend, long, boolean)}
+     */
+    public Backend choose() {
+        Backend chosen = backends.length == 1 ? backends[0] : select(System.nanoTime());
+        chosen.outstanding.incrementAndGet();
+        return chosen;
+    }
+
+    private Backend select(long now) {
+        // scan from a random offset, so that ties are spread over the nodes
+        int offset = ThreadLocalRandom.current().nextInt(backends.length);
+        long seedLatencyNanos = strategy == Strategy.EWMA_LATENCY ? seedLatencyNanos() : 0;
+        Backend best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (boolean availableOnly : new boolean[]{true, false}) {
+            for (int i = 0; i < backends.length; i++) {
+                Backend backend = backends[(offset + i) % backends.length];
+                if (availableOnly && !backend.isAvailable(now)) {
+                    continue;
+                }
+                double score = score(backend, seedLatencyNanos);
+                // on a tie, a node without samples wins, so that it is tried
+                if (score < bestScore || (score == bestScore && best.ewmaLatencyNanos.get() != 0
+                        && backend.ewmaLatencyNanos.get() == 0)) {
+                    best = backend;
+                    bestScore = score;
+                }
+            }
+            if (best != null) {
+                return best;
+            }
+        }
+        return backends[offset];
+    }
+
+    private double score(Backend backend, long seedLatencyNanos) {
+        int outstanding = backend.outstanding.get();
+        if (strategy == Strategy.LEAST_OUTSTANDING) {
+            return outstanding;
+        }
+        long latency = backend.ewmaLatencyNanos.get();
+        return (double) (latency == 0 ? seedLatencyNanos : latency) * (outstanding + 1);
+    }
+
+    /**
+     * @return The latency assumed for a node without samples (new, or not yet successful): the mean latency of the
+     * nodes with samples, or 1 if there are none. Not 0, so that the requests in progress on such a node still count
+     */
+    private long seedLatencyNanos() {
+        long sum = 0;
+        int sampled = 0;
+        for (Backend backend : backends) {
+            long latency = backend.ewmaLatencyNanos.get();
+            if (latency != 0) {
+                sum += latency;
+                sampled++;
+            }
+        }
+        return sampled == 0 ? 1 : Math.max(1, sum / sampled);
+    }
+
+    /**
+     * Record the outcome of a request
+     * @param backend The node chosen for the request
+     * @param latencyNanos Duration of the request. Only successes count for the latency: a fast failure
+     *                     (e.g. connection refused) must not make a node look attractive
+     * @param success False on a connection error or a 5xx response
+     */
+    public void onComplete(Backend backend, long latencyNanos, boolean success) {
+        backend.outstanding.decrementAndGet();
+        if (success) {
+            long previous;
+            long updated;
+            do {
+                previous = backend.ewmaLatencyNanos.get();
+                updated = previous == 0 ? latencyNanos : (long) (previous + EWMA_WEIGHT * (latencyNanos - previous));
+            } while (!backend.ewmaLatencyNanos.compareAndSet(previous, updated));
+
+            backend.consecutiveFailures.set(0);
+            // back for a whole ejection time without being ejected again: the next ejection starts short again
+            if (backend.ejections.get() > 0 && System.nanoTime() - backend.ejectedUntilNanos >= baseEjectionNanos) {
+                backend.ejections.set(0);
+            }
+        } else if (backend.consecutiveFailures.incrementAndGet() >= maxConsecutiveFailures) {
+            eject(backend);
+        }
+    }
+
+    private void eject(Backend backend) {
+        backend.consecutiveFailures.set(0);
+        int times = Math.min(10, backend.ejections.incrementAndGet());
+        backend.ejectedUntilNanos = System.nanoTime() + baseEjectionNanos * times;
+        log.warning("ejected back-end " + backend + " for " + baseEjectionNanos * times / 1_000_000 + " ms");
+    }
+
+    /**
+     * Record the result of an active health check
+     */
+    public void setHealthy(Backend backend, boolean healthy) {
+        if (backend.healthy != healthy) {
+            log.warning("back-end " + backend + (healthy ? " is up" : " is down"));
+            backend.healthy = healthy;
+            if (healthy) {
+                backend.ejections.set(0);
+            }
+        }
+    }
+}
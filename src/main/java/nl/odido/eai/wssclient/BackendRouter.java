@@ -0,0 +1,115 @@
+package nl.odido.eai.wssclient;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.http.HttpMethod;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Routes request paths to back-end pools, by the longest matching path prefix,
+ * and checks the health of the back-end nodes periodically
+ */
+public class BackendRouter {
+
+    static Logger log = Logger.getLogger(BackendRouter.class.getName());
+
+    private record Route(String prefix, BackendPool pool) {}
+
+    private final List<Route> routes;
+    private final String healthPath;
+    private final long healthIntervalSeconds;
+
+    /**
+     * @param routes Path prefix (e.g. /services/orders, or / for all paths) to back-end pool
+     * @param healthPath Path requested (GET) from every node by the health check. A node is up if it returns
+     *                   any HTTP response below 500
+     * @param healthIntervalSeconds Time between health checks, or 0 for no health checks
+     */
+    public BackendRouter(Map<String, BackendPool> routes, String healthPath, long healthIntervalSeconds) {
+        List<Route> list = new ArrayList<>();
+        routes.forEach((prefix, pool) -> list.add(new Route(prefix, pool)));
+        list.sort(Comparator.comparingInt((Route r) -> r.prefix().length()).reversed());
+        this.routes = List.copyOf(list);
+        this.healthPath = healthPath;
+        this.healthIntervalSeconds = healthIntervalSeconds;
+    }
+
+    /**
+     * A router that sends all requests to one back-end, without health checks
+     * @param backendUrl Base url of the back-end
+     */
+    public static BackendRouter single(String backendUrl) {
+        Map<String, BackendPool> routes = new LinkedHashMap<>();
+        routes.put("/", new BackendPool(List.of(backendUrl), BackendPool.Strategy.LEAST_OUTSTANDING, Integer.MAX_VALUE, 0));
+        return new BackendRouter(routes, "/", 0);
+    }
+
+    /**
+     * @param path Request path
+     * @return The pool for the path, or null if no route matches. A prefix matches whole path segments only:
+     * /services/orders matches /services/orders and /services/orders/v1, not /services/ordersArchive
+     */
+    public BackendPool route(String path) {
+        for (Route route : routes) {
+            if (matches(route.prefix(), path)) {
+                return route.pool();
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(String prefix, String path) {
+        if (prefix.endsWith("/")) {
+            return path.startsWith(prefix) || path.equals(prefix.substring(0, prefix.length() - 1));
+        }
+        return path.equals(prefix) || path.startsWith(prefix + "/");
+    }
+
+    /**
+     * @return The nodes of all pools
+     */
+    public List<BackendPool.Backend> getBackends() {
+        List<BackendPool.Backend> backends = new ArrayList<>();
+        for (Route route : routes) {
+            backends.addAll(route.pool().getBackends());
+        }
+        return backends;
+    }
+
+    /**
+     * Check the health of all nodes now, and then periodically, until the client is stopped
+     */
+    public void startHealthChecks(HttpClient client) {
+        if (healthIntervalSeconds > 0) {
+            checkHealth(client);
+        }
+    }
+
+    private void checkHealth(HttpClient client) {
+        if (!client.isRunning()) {
+            return;
+        }
+        for (Route route : routes) {
+            for (BackendPool.Backend backend : route.pool().getBackends()) {
+                try {
+                    client.newRequest(backend.url() + healthPath)
+                            .method(HttpMethod.GET)
+                            .timeout(Math.max(1, healthIntervalSeconds), TimeUnit.SECONDS)
+                            .send(result -> route.pool().setHealthy(backend,
+                                    result.isSucceeded() && result.getResponse().getStatus() < 500));
+                } catch (Exception e) {
+                    log.log(Level.WARNING, "health check of " + backend + " failed", e);
+                    route.pool().setHealthy(backend, false);
+                }
+            }
+        }
+        client.getScheduler().schedule(() -> checkHealth(client), healthIntervalSeconds, TimeUnit.SECONDS);
+    }
+}
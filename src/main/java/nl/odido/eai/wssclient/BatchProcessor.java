@@ -0,0 +1,163 @@
+package nl.odido.eai.wssclient;
+
+import org.apache.wss4j.dom.handler.WSHandlerResult;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Signs or verifies many files in one JVM, in parallel, with a shared {@link WssUtils}.
+ * Files are read and written as bytes, as they are: the parser detects the encoding, line endings are not changed.
+ * Files above the streaming threshold of the WssUtils are signed and verified with the streaming (StAX) implementation,
+ * so they are not loaded whole
+ */
+public class BatchProcessor {
+
+    static Logger log = Logger.getLogger(BatchProcessor.class.getName());
+
+    /**
+     * The result of a batch
+     * @param files Number of files processed
+     * @param failed Number of files that could not be signed or verified
+     * @param bytes Total size of the input files
+     * @param elapsedMillis Duration of the batch
+     */
+    public record Summary(long files, long failed, long bytes, long elapsedMillis) {
+        @Override
+        public String toString() {
+            double seconds = Math.max(1, elapsedMillis) / 1000.0;
+            return String.format("%d files, %d failed, %.1f MB in %.1f s: %.1f files/s, %.1f MB/s",
+                    files, failed, bytes / 1e6, seconds, files / seconds, bytes / 1e6 / seconds);
+        }
+    }
+
+    private final WssUtils wss;
+    private final int threads;
+
+    /**
+     * @param wss Signs and verifies the files, shared by all threads
+     * @param threads Number of files processed in parallel
+     */
+    public BatchProcessor(WssUtils wss, int threads) {
+        this.wss = wss;
+        this.threads = threads;
+    }
+
+    /**
+     * The input files of a batch
+     * @param input A directory (all regular files below it, recursively) or a manifest file
+     *              (one path per line, relative to the directory of the manifest; blank lines and lines starting with # are skipped)
+     * @return The input files, in a stable order
+     */
+    public static List<Path> listInputs(Path input) throws IOException {
+        if (Files.isDirectory(input)) {
+            try (Stream<Path> files = Files.walk(input)) {
+                return files.filter(Files::isRegularFile).sorted().toList();
+            }
+        }
+        Path base = input.toAbsolutePath().getParent();
+        List<Path> files = new ArrayList<>();
+        for (String line : Files.readAllLines(input, StandardCharsets.UTF_8)) {
+            String name = line.strip();
+            if (!name.isEmpty() && !name.startsWith("#")) {
+                files.add(base.resolve(name));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Sign files
+     * @param input A directory or manifest, see {@link #listInputs(Path)}
+     * @param outputDir Receives the signed files, with the same path relative to the input directory
+     *                  (or to the directory of the manifest). Existing files are replaced
+     */
+    public Summary sign(Path input, Path outputDir) throws IOException, InterruptedException {
+        Path base = Files.isDirectory(input) ? input.toAbsolutePath() : input.toAbsolutePath().getParent();
+        return run(listInputs(input), file -> {
+            Path target = outputDir.toAbsolutePath().resolve(base.relativize(file.toAbsolutePath()));
+            Files.createDirectories(target.getParent());
+            // write to a temporary file first, so that a failure does not leave a partially signed file
+            Path temp = Files.createTempFile(target.getParent(), ".signing-", ".tmp");
+            try {
+                try (InputStream in = Files.newInputStream(file);
+                     OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), 65536)) {
+                    wss.signWSS(in, Files.size(file), out);
+                }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            log.fine(() -> "signed " + file + " to " + target);
+        });
+    }
+
+    /**
+     * Verify the signatures of files. SOAP Faults without a signature are accepted, as by {@link WssUtils#verifyWSS(InputStream)}
+     * @param input A directory or manifest, see {@link #listInputs(Path)}
+     */
+    public Summary verify(Path input) throws IOException, InterruptedException {
+        return run(listInputs(input), file -> {
+            WSHandlerResult result;
+            try (InputStream in = Files.newInputStream(file)) {
+                result = Files.size(file) > wss.getStreamingThreshold()
+                        ? wss.verifyWSSStreaming(in)
+                        : wss.verifyWSS(in);
+            }
+            if (log.isLoggable(Level.FINE)) {
+                log.fine("verified " + file + (result == null ? ": SOAP Fault"
+                        : ", signed by certificates with serial numbers " + WssUtils.getSignerCertificateSerials(result)));
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface FileTask {
+        void process(Path file) throws Exception;
+    }
+
+    private Summary run(List<Path> files, FileTask task) throws InterruptedException {
+        LongAdder failed = new LongAdder();
+        LongAdder bytes = new LongAdder();
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>(files.size());
+            for (Path file : files) {
+                results.add(executor.submit(() -> {
+                    try {
+                        bytes.add(Files.size(file));
+                        task.process(file);
+                    } catch (Exception e) {
+                        failed.increment();
+                        log.log(Level.WARNING, "error processing " + file + ": " + e, log.isLoggable(Level.FINE) ? e : null);
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return new Summary(files.size(), failed.sum(), bytes.sum(), (System.nanoTime() - start) / 1_000_000);
+    }
+}
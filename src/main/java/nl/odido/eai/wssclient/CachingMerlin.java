@@ -0,0 +1,157 @@
+package nl.odido.eai.wssclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import org.apache.wss4j.common.crypto.Merlin;
+import org.apache.wss4j.common.ext.WSSecurityException;
+
+/**
+ * Merlin crypto that caches parsed certificates and trust validation results, keyed by the SHA-256 fingerprint
+ * of the DER encoded certificates. The back-end signs with the same one or two certificates, so the
+ * certificate factory and the PKIX path validation run only once per certificate and cache period.
+ * The caches may be shared by several instances that use the same truststore, and are cleared when the truststore is replaced.
+ */
+public class CachingMerlin extends Merlin {
+
+    /**
+     * Outcome of a trust path validation. A failure is kept as its error code and message, not as the exception:
+     * every caller gets its own exception, with its own stack trace
+     * @param errorCode Error code of the validation failure, or null if the certificate path is trusted
+     * @param message Message of the validation failure
+     */
+    record TrustResult(WSSecurityException.ErrorCode errorCode, String message) {}
+
+    private final TtlCache<String, X509Certificate> certificateCache;
+    private final TtlCache<String, TrustResult> trustCache;
+
+    /**
+     * Create a new instance that loads its keystore from the given properties
+     */
+    public CachingMerlin(Properties properties, TtlCache<String, X509Certificate> certificateCache, TtlCache<String, TrustResult> trustCache)
+            throws WSSecurityException, IOException {
+        super(properties, CachingMerlin.class.getClassLoader(), null);
+        this.certificateCache = certificateCache;
+        this.trustCache = trustCache;
+    }
+
+    /**
+     * Create a new instance that shares an already loaded keystore
+     */
+    public CachingMerlin(KeyStore keystore, TtlCache<String, X509Certificate> certificateCache, TtlCache<String, TrustResult> trustCache) {
+        super();
+        this.certificateCache = certificateCache;
+        this.trustCache = trustCache;
+        setKeyStore(keystore);
+    }
+
+    @Override
+    public X509Certificate loadCertificate(InputStream in) throws WSSecurityException {
+        byte[] encoded;
+        try {
+            encoded = in.readAllBytes();
+        } catch (IOException e) {
+            throw new WSSecurityException(WSSecurityException.ErrorCode.SECURITY_TOKEN_UNAVAILABLE, e, "parseError");
+        }
+        String fingerprint = fingerprint(encoded);
+        X509Certificate cert = certificateCache.get(fingerprint);
+        if (cert == null) {
+            cert = super.loadCertificate(new ByteArrayInputStream(encoded));
+            certificateCache.put(fingerprint, cert, cert.getNotAfter().getTime());
+        }
+        return cert;
+    }
+
+    @Override
+    public void verifyTrust(X509Certificate[] certs, boolean enableRevocation,
+                            Collection<Pattern> subjectCertConstraints, Collection<Pattern> issuerCertConstraints) throws WSSecurityException {
+        if (enableRevocation || certs == null || certs.length == 0
+                || (subjectCertConstraints != null && !subjectCertConstraints.isEmpty())
+                || (issuerCertConstraints != null && !issuerCertConstraints.isEmpty())) {
+            // revocation status and constraint patterns are not part of the cache key
+            super.verifyTrust(certs, enableRevocation, subjectCertConstraints, issuerCertConstraints);
+            return;
+        }
+
+        String fingerprint = fingerprint(certs);
+        TrustResult result = trustCache.get(fingerprint);
+        if (result == null) {
+            try {
+                super.verifyTrust(certs, false, subjectCertConstraints, issuerCertConstraints);
+                result = new TrustResult(null, null);
+            } catch (WSSecurityException e) {
+                trustCache.put(fingerprint, new TrustResult(e.getErrorCode(), e.getMessage()), notAfter(certs));
+                throw e;
+            }
+            trustCache.put(fingerprint, result, notAfter(certs));
+        }
+        if (result.errorCode() != null) {
+            throw new WSSecurityException(result.errorCode(), new CertificateException(result.message()));
+        }
+    }
+
+    @Override
+    public void setKeyStore(KeyStore keyStore) {
+        super.setKeyStore(keyStore);
+        invalidateCaches();
+    }
+
+    @Override
+    public void setTrustStore(KeyStore trustStore) {
+        super.setTrustStore(trustStore);
+        invalidateCaches();
+    }
+
+    private void invalidateCaches() {
+        // the fields are not yet assigned when the super constructor loads the keystore
+        if (certificateCache != null) {
+            certificateCache.invalidateAll();
+        }
+        if (trustCache != null) {
+            trustCache.invalidateAll();
+        }
+    }
+
+    private static long notAfter(X509Certificate[] certs) {
+        long notAfter = Long.MAX_VALUE;
+        for (X509Certificate cert : certs) {
+            notAfter = Math.min(notAfter, cert.getNotAfter().getTime());
+        }
+        return notAfter;
+    }
+
+    private static String fingerprint(X509Certificate[] certs) throws WSSecurityException {
+        MessageDigest digest = sha256();
+        try {
+            for (X509Certificate cert : certs) {
+                digest.update(cert.getEncoded());
+            }
+        } catch (CertificateEncodingException e) {
+            throw new WSSecurityException(WSSecurityException.ErrorCode.FAILURE, e);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static String fingerprint(byte[] encoded) throws WSSecurityException {
+        return HexFormat.of().formatHex(sha256().digest(encoded));
+    }
+
+    private static MessageDigest sha256() throws WSSecurityException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new WSSecurityException(WSSecurityException.ErrorCode.FAILURE, e);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package nl.odido.eai.wssclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+
+/**
+ * The HTTP content codings of the proxy: streaming decoders of gzip and deflate request bodies, and a gzip encoder
+ * of (signed) message buffers. The encoder writes the gzip format around a raw deflate stream itself,
+ * so that the native Deflater instances can be pooled instead of created and ended for every message,
+ * and deflates into pooled chunk buffers
+ */
+public class Compression {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final int GZIP_TRAILER_LENGTH = 8;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    private Compression() {
+    }
+
+    /**
+     * @param contentEncoding Value of a Content-Encoding header, or null
+     * @return True if the body is not encoded
+     */
+    public static boolean isIdentity(String contentEncoding) {
+        return contentEncoding == null || contentEncoding.isBlank() || "identity".equalsIgnoreCase(contentEncoding.strip());
+    }
+
+    /**
+     * Decode a body as it is read
+     * @param contentEncoding Value of the Content-Encoding header: gzip, x-gzip, deflate, identity or null
+     * @param body The (encoded) body
+     * @return The decoded body
+     * @throws IllegalArgumentException If the coding is not supported
+     */
+    public static InputStream decode(String contentEncoding, InputStream body) throws IOException {
+        if (isIdentity(contentEncoding)) {
+            return body;
+        }
+        return switch (contentEncoding.strip().toLowerCase(Locale.ROOT)) {
+            case GZIP, "x-gzip" -> new GZIPInputStream(body, 8192);
+            case DEFLATE -> new InflaterInputStream(body);
+            default -> throw new IllegalArgumentException("unsupported Content-Encoding " + contentEncoding);
+        };
+    }
+
+    /**
+     * Compress a buffer to the gzip format, with a pooled Deflater, into chunks from a buffer pool: the compressed
+     * data is never held in one array, and a multi-MB message does not allocate a second message-sized buffer
+     * @param data The data; its position is not changed
+     * @param pool Pool of the chunks
+     * @return The compressed data, in chunks ready to be read. They must be released to the pool after use
+     */
+    public static ByteBuffer[] gzip(ByteBuffer data, ByteBufferPool pool) {
+        List<ByteBuffer> chunks = new ArrayList<>();
+        ByteBuffer chunk = acquire(pool, chunks);
+        chunk.put(new byte[] {(byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff});   // unknown OS
+
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        try {
+            deflater.setInput(data.duplicate());
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (!chunk.hasRemaining()) {
+                    chunk = acquire(pool, chunks);
+                }
+                deflater.deflate(chunk);
+            }
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        if (chunk.remaining() < GZIP_TRAILER_LENGTH) {
+            chunk = acquire(pool, chunks);
+        }
+        chunk.order(ByteOrder.LITTLE_ENDIAN)
+                .putInt((int) crc.getValue())
+                .putInt(data.remaining())
+                .order(ByteOrder.BIG_ENDIAN);
+        for (ByteBuffer c : chunks) {
+            c.flip();
+        }
+        return chunks.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * @return A new empty chunk, added to the chunks, ready to be written
+     */
+    private static ByteBuffer acquire(ByteBufferPool pool, List<ByteBuffer> chunks) {
+        ByteBuffer chunk = pool.acquire(CHUNK_SIZE, false);
+        chunk.clear();
+        chunks.add(chunk);
+        return chunk;
+    }
+}
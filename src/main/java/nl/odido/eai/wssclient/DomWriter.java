@@ -0,0 +1,237 @@
+package nl.odido.eai.wssclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * A lightweight serializer that writes a DOM straight to UTF-8 bytes, without indentation.
+ * The output is faithful for signed documents: characters that the parser would normalize
+ * (CR, and TAB/LF in attributes) are written as character references, and namespaces used
+ * but not declared in the DOM are declared where needed.
+ * An instance writes one document; not thread-safe
+ */
+public class DomWriter {
+
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[8192];
+    private int count = 0;
+    // in-scope namespace bindings, as prefix/uri pairs; looked up from the end
+    private final List<String> bindings = new ArrayList<>();
+
+    private DomWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Serialize a node. A document node is written with an XML declaration
+     * @param node The node
+     * @param out Stream to write to. It is not closed
+     */
+    public static void write(Node node, OutputStream out) throws IOException {
+        DomWriter writer = new DomWriter(out);
+        writer.node(node);
+        writer.flush();
+    }
+
+    private void node(Node node) throws IOException {
+        switch (node.getNodeType()) {
+            case Node.DOCUMENT_NODE -> {
+                ascii(XML_DECLARATION);
+                children(node);
+            }
+            case Node.DOCUMENT_FRAGMENT_NODE, Node.ENTITY_REFERENCE_NODE -> children(node);
+            case Node.ELEMENT_NODE -> element(node);
+            case Node.TEXT_NODE -> escaped(node.getNodeValue(), false);
+            case Node.CDATA_SECTION_NODE -> {
+                ascii("<![CDATA[");
+                text(node.getNodeValue().replace("]]>", "]]]]><![CDATA[>"));
+                ascii("]]>");
+            }
+            case Node.COMMENT_NODE -> {
+                ascii("<!--");
+                text(node.getNodeValue());
+                ascii("-->");
+            }
+            case Node.PROCESSING_INSTRUCTION_NODE -> {
+                ascii("<?");
+                text(node.getNodeName());
+                String data = node.getNodeValue();
+                if (data != null && !data.isEmpty()) {
+                    ascii(" ");
+                    text(data);
+                }
+                ascii("?>");
+            }
+            default -> {
+                // document types, entities and notations are not written
+            }
+        }
+    }
+
+    private void children(Node node) throws IOException {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            node(child);
+        }
+    }
+
+    private void element(Node element) throws IOException {
+        int scope = bindings.size();
+        String name = element.getNodeName();
+        ascii("<");
+        text(name);
+
+        NamedNodeMap attributes = element.getAttributes();
+        int length = attributes.getLength();
+        for (int i = 0; i < length; i++) {
+            Attr attr = (Attr) attributes.item(i);
+            if (isNamespaceDeclaration(attr)) {
+                String prefix = XMLConstants.XMLNS_ATTRIBUTE.equals(attr.getNodeName()) ? "" : attr.getNodeName().substring(6);
+                bind(prefix, attr.getValue());
+                attribute(attr.getNodeName(), attr.getValue());
+            }
+        }
+        declareIfNeeded(element.getPrefix(), element.getNamespaceURI());
+        for (int i = 0; i < length; i++) {
+            Attr attr = (Attr) attributes.item(i);
+            String namespace = attr.getNamespaceURI();
+            if (!isNamespaceDeclaration(attr)) {
+                if (namespace != null && !namespace.isEmpty() && attr.getPrefix() != null) {
+                    declareIfNeeded(attr.getPrefix(), namespace);
+                }
+                attribute(attr.getNodeName(), attr.getValue());
+            }
+        }
+
+        if (element.hasChildNodes()) {
+            ascii(">");
+            children(element);
+            ascii("</");
+            text(name);
+            ascii(">");
+        } else {
+            ascii("/>");
+        }
+        while (bindings.size() > scope) {
+            bindings.remove(bindings.size() - 1);
+        }
+    }
+
+    private static boolean isNamespaceDeclaration(Attr attr) {
+        String name = attr.getNodeName();
+        return XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())
+                || XMLConstants.XMLNS_ATTRIBUTE.equals(name) || name.startsWith("xmlns:");
+    }
+
+    private void attribute(String name, String value) throws IOException {
+        ascii(" ");
+        text(name);
+        ascii("=\"");
+        escaped(value, true);
+        ascii("\"");
+    }
+
+    private void bind(String prefix, String uri) {
+        bindings.add(prefix);
+        bindings.add(uri);
+    }
+
+    private String lookup(String prefix) {
+        for (int i = bindings.size() - 2; i >= 0; i -= 2) {
+            if (bindings.get(i).equals(prefix)) {
+                return bindings.get(i + 1);
+            }
+        }
+        return "xml".equals(prefix) ? XMLConstants.XML_NS_URI : "";
+    }
+
+    private void declareIfNeeded(String prefix, String uri) throws IOException {
+        prefix = prefix == null ? "" : prefix;
+        uri = uri == null ? "" : uri;
+        if (!lookup(prefix).equals(uri)) {
+            bind(prefix, uri);
+            attribute(prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix, uri);
+        }
+    }
+
+    private void escaped(String s, boolean inAttribute) throws IOException {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '&' -> ascii("&amp;");
+                case '<' -> ascii("&lt;");
+                case '>' -> ascii(inAttribute ? ">" : "&gt;");
+                case '"' -> ascii(inAttribute ? "&quot;" : "\"");
+                case '\r' -> ascii("&#13;");
+                case '\n' -> ascii(inAttribute ? "&#10;" : "\n");
+                case '\t' -> ascii(inAttribute ? "&#9;" : "\t");
+                default -> i = encode(s, i, c);
+            }
+        }
+    }
+
+    private void text(String s) throws IOException {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            i = encode(s, i, s.charAt(i));
+        }
+    }
+
+    /**
+     * Write one character as UTF-8
+     * @return Index of the last char used (the low surrogate of a pair)
+     */
+    private int encode(String s, int i, char c) throws IOException {
+        if (count + 4 > buffer.length) {
+            flushBuffer();
+        }
+        if (c < 0x80) {
+            buffer[count++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[count++] = (byte) (0xC0 | (c >> 6));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            buffer[count++] = (byte) (0xF0 | (cp >> 18));
+            buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buffer[count++] = (byte) (0x80 | (cp & 0x3F));
+            return i + 1;
+        } else {
+            buffer[count++] = (byte) (0xE0 | (c >> 12));
+            buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return i;
+    }
+
+    private void ascii(String s) throws IOException {
+        int length = s.length();
+        if (count + length > buffer.length) {
+            flushBuffer();
+        }
+        for (int i = 0; i < length; i++) {
+            buffer[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, count);
+        count = 0;
+    }
+
+    private void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+}
@@ -0,0 +1,104 @@
+package nl.odido.eai.wssclient;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the keystore and truststore files, and builds a new {@link WssUtils} when their content changes,
+ * on its own thread, so that certificates are rotated without a restart and without a pause on the request path.
+ * The files are polled by content digest, which also detects the symlink swaps of mounted secrets.
+ * If the new files cannot be loaded (e.g. while they are being written), the current WssUtils is kept
+ * and the load is retried at the next poll
+ */
+public class KeystoreWatcher implements AutoCloseable {
+
+    static Logger log = Logger.getLogger(KeystoreWatcher.class.getName());
+
+    private final List<Path> files;
+    private final Callable<WssUtils> factory;
+    private final Consumer<WssUtils> onReload;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong reloads = new AtomicLong();
+    private byte[] digest;
+
+    /**
+     * Create a watcher and start polling
+     * @param files The keystore and truststore files
+     * @param intervalSeconds Time between polls
+     * @param factory Builds a WssUtils from the (changed) files
+     * @param onReload Receives the new WssUtils, e.g. {@link ProxyHandler#setWssUtils(WssUtils)}
+     */
+    public KeystoreWatcher(List<Path> files, long intervalSeconds, Callable<WssUtils> factory, Consumer<WssUtils> onReload) throws IOException {
+        this.files = files;
+        this.factory = factory;
+        this.onReload = onReload;
+        this.digest = digest();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "keystore-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::poll, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return Number of times a new WssUtils was built and handed over
+     */
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    /**
+     * Check the files now, and reload if they changed
+     * @return True if a new WssUtils was handed over
+     */
+    synchronized boolean poll() {
+        try {
+            byte[] current = digest();
+            if (Arrays.equals(current, digest)) {
+                return false;
+            }
+            log.info("keystore or truststore changed, reloading");
+            WssUtils wss = factory.call();
+            wss.warmUp();
+            onReload.accept(wss);
+            digest = current;
+            reloads.incrementAndGet();
+            log.info("reloaded keystore and truststore");
+            return true;
+        } catch (Exception e) {
+            log.log(Level.WARNING, "could not reload the keystore or truststore, keeping the current ones", e);
+            return false;
+        }
+    }
+
+    private byte[] digest() throws IOException {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            for (Path file : files) {
+                sha256.update(Files.readAllBytes(file));
+            }
+            return sha256.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,108 @@
+package nl.odido.eai.wssclient;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram in microseconds, with about 1% precision (log-linear buckets).
+ * Up to about 70 minutes; longer latencies are counted in the last bucket
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAGNITUDES = 25;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS * (MAGNITUDES + 1));
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param micros A latency in microseconds
+     */
+    public void record(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        if (magnitude > MAGNITUDES) {
+            return SUB_BUCKETS * (MAGNITUDES + 1) - 1;
+        }
+        int subBucket = (int) (value >>> magnitude) - SUB_BUCKETS / 2;
+        return SUB_BUCKETS + (magnitude - 1) * (SUB_BUCKETS / 2) + subBucket;
+    }
+
+    private static long value(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = (index - SUB_BUCKETS) / (SUB_BUCKETS / 2) + 1;
+        int subBucket = (index - SUB_BUCKETS) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+        // upper end of the bucket
+        return ((long) (subBucket + 1) << magnitude) - 1;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return The sum of all recorded latencies in microseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return The latency in microseconds at the percentile, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return value(i);
+            }
+        }
+        return value(counts.length() - 1);
+    }
+
+    /**
+     * Cumulative counts, for coarse (e.g. Prometheus) histogram buckets. A latency counts for a bound if the upper end
+     * of its fine bucket is not above the bound
+     * @param bounds Upper bounds in microseconds, ascending
+     * @return Per bound the number of latencies at or below it, followed by the total count
+     */
+    public long[] getCumulativeCounts(long[] bounds) {
+        long[] cumulative = new long[bounds.length + 1];
+        int b = 0;
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long upper = value(i);
+            while (b < bounds.length && upper > bounds[b]) {
+                cumulative[b++] = seen;
+            }
+            seen += counts.get(i);
+        }
+        while (b < bounds.length) {
+            cumulative[b++] = seen;
+        }
+        cumulative[bounds.length] = seen;
+        return cumulative;
+    }
+}
@@ -4,7 +4,11 @@ import org.apache.wss4j.dom.handler.WSHandlerResult;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.file.Path;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -25,14 +29,70 @@ public class Main extends Thread {
     // the provided truststore file contains Odido's test WSS certificate and the test WSS certificate from the keystore
     static final String truststoreFile = "./src/test/resources/wss_truststore.jks";
     static final String truststorePassword = "secret";
+    // the proxy reloads the keystore and truststore when their content changes, checked at this interval
+    static final long keystorePollSeconds = 30;
 
     static final int idleTimeoutSeconds = 60;
     static final BigInteger certSerial = new BigInteger("7cb95a8f8f9ca851b7869fb523dd51ca9a92cd7b", 16);
     static final String host = "0.0.0.0";
     static final int port = 8080;
+    // Prometheus metrics endpoint (GET /metrics) on a separate port
+    static final int metricsPort = 9090;
+    // proxy requests without holding a server thread during the back-end call
+    static final boolean asyncProxy = true;
+    // admission control: concurrent requests, requests waiting for a slot, and the maximum wait before a 503 response
+    static final int maxInFlightRequests = 256;
+    static final int maxQueuedRequests = 512;
+    static final long maxQueueWaitMillis = 2000;
+    static final int retryAfterSeconds = 1;
+    // back-end responses above this size (bytes) are spooled to a temporary file and verified with the streaming verifier
+    static final int responseMemoryThreshold = 1024 * 1024;
+    // handle requests and client callbacks on virtual threads (Java 21+) or on bounded platform thread pools
+    static final ThreadPools.Mode threadMode = ThreadPools.Mode.PLATFORM;
+    // back-end client: HTTP/2 with HTTP/1.1 fallback (negotiated on TLS), connection pool size, requests per connection
+    // before it is replaced (0 = no limit), connections kept open from the start, the connect timeout, and the maximum
+    // time of a back-end call before a 504 response (0 = no limit)
+    static final boolean backendHttp2 = true;
+    static final int maxBackendConnections = 256;
+    static final int maxRequestsPerConnection = 0;
+    static final int minBackendConnections = 8;
+    static final long connectTimeoutMillis = 1000L;
+    static final long requestTimeoutMillis = 30_000L;
+    // back-end routing: path prefix to comma separated back-end urls; all other paths go to the url(s) on the command line
+    static final Map<String, String> backendRoutes = Map.of();
+    // load balancing over the urls of a route, and ejection of a back-end after consecutive failures (connection errors,
+    // 5xx responses) for a time that grows with every ejection; health check path and interval (0 = no health checks)
+    static final BackendPool.Strategy balancingStrategy = BackendPool.Strategy.EWMA_LATENCY;
+    static final int maxConsecutiveFailures = 5;
+    static final long baseEjectionMillis = 10_000L;
+    static final String healthCheckPath = "/";
+    static final long healthCheckSeconds = 10;
+    // gzip compression of the responses to clients that accept it, from this size (bytes; 0 = no compression), and of
+    // the signed requests to the back-end from this size (0 = never; only for back-ends that accept gzip requests)
+    static final int responseCompressionMinBytes = 1024;
+    static final int backendCompressionMinBytes = 0;
+    // audit journal of the signed requests and their responses: directory (null = no journal), fraction of the exchanges
+    // recorded, maximum bytes recorded per payload, segment file size and number of segment files kept
+    static final String auditDirectory = "./audit";
+    static final double auditSampleRate = 1.0;
+    static final int auditMaxPayloadBytes = 64 * 1024;
+    static final long auditSegmentBytes = 64L * 1024 * 1024;
+    static final int auditMaxSegments = 32;
+    // response cache of idempotent operations: first Body element name to time-to-live in milliseconds
+    // (e.g. Map.of("GetSubscriptionRequest", 30_000L); empty = no cache), and the maximum size of the cached responses
+    static final Map<String, Long> cachedOperations = Map.of();
+    static final long responseCacheBytes = 64L * 1024 * 1024;
+    // idempotent operations whose identical concurrent requests are sent to the back-end once (empty = no coalescing)
+    static final Set<String> coalescedOperations = Set.of();
+    // synthetic sign/verify cycles per request thread before the listener is opened
+    static final int warmUpCycles = 20;
+    // number of files signed or verified in parallel by the batch commands
+    static final int batchThreads = Runtime.getRuntime().availableProcessors();
 
     private static ProxyServer proxyServer = null;
     private static ProxyHandler proxyHandler = null;
+    private static AuditJournal auditJournal = null;
+    private static KeystoreWatcher keystoreWatcher = null;
 
     static String readFile(String fileName) throws IOException {
         try (FileReader fr = new FileReader(fileName); BufferedReader br = new BufferedReader(fr)) {
@@ -46,6 +106,17 @@ public class Main extends Thread {
         }
     }
 
+    static BackendRouter newRouter(String defaultUrls) {
+        Map<String, BackendPool> routes = new LinkedHashMap<>();
+        routes.put("/", newBackendPool(defaultUrls));
+        backendRoutes.forEach((prefix, urls) -> routes.put(prefix, newBackendPool(urls)));
+        return new BackendRouter(routes, healthCheckPath, healthCheckSeconds);
+    }
+
+    private static BackendPool newBackendPool(String urls) {
+        return new BackendPool(List.of(urls.split(",")), balancingStrategy, maxConsecutiveFailures, baseEjectionMillis);
+    }
+
     public static void main(String[] args) {
         try {
             WssUtils wss = WssUtils.newWssUtils(keystoreFile, keystorePassword, keystoreAlias, truststoreFile, truststorePassword, Collections.emptyList());
@@ -66,13 +137,74 @@ public class Main extends Thread {
                     log.info("Message is signed by certificates with serial numbers " + certSerials);
                 }
 
+            } else if (args.length == 3 && "sign-batch".equals(args[0])) {
+                BatchProcessor.Summary summary = new BatchProcessor(wss, batchThreads).sign(Path.of(args[1]), Path.of(args[2]));
+                System.out.println("signed " + summary);
+                if (summary.failed() > 0) {
+                    System.exit(1);
+                }
+            } else if (args.length == 2 && "verify-batch".equals(args[0])) {
+                BatchProcessor.Summary summary = new BatchProcessor(wss, batchThreads).verify(Path.of(args[1]));
+                System.out.println("verified " + summary);
+                if (summary.failed() > 0) {
+                    System.exit(1);
+                }
+            } else if (args.length == 1 && "warmup".equals(args[0])) {
+                // training run for the AppCDS archive: load and initialise the classes of the proxy, then exit
+                ProxyHandler handler = new ProxyHandler(idleTimeoutSeconds, "http://localhost", wss, certSerial);
+                handler.setAsyncMode(asyncProxy);
+                handler.setThreadMode(threadMode);
+                handler.setHttp2(backendHttp2);
+                ProxyServer server = new ProxyServer(handler, idleTimeoutSeconds, "localhost", 0, threadMode);
+                server.setMetrics(handler.getMetrics(), 0);
+                server.setWarmUp(warmUpCycles, () -> {
+                    wss.warmUp();
+                    return null;
+                });
+                handler.startClient();
+                server.start();
+                server.stop();
+                handler.stopClient();
             } else if (args.length == 2 && "proxy".equals(args[0])) {
                 Main mainLoop = new  Main();
                 mainLoop.addShutdownHook();
-                proxyHandler = new ProxyHandler(idleTimeoutSeconds, args[1], wss, certSerial);
-                proxyServer = new ProxyServer(proxyHandler, idleTimeoutSeconds, host, port);
+                proxyHandler = new ProxyHandler(idleTimeoutSeconds, args[1].split(",")[0], wss, certSerial);
+                proxyHandler.setRouter(newRouter(args[1]));
+                proxyHandler.setAsyncMode(asyncProxy);
+                proxyHandler.setAdmissionControl(new AdmissionControl(maxInFlightRequests, maxQueuedRequests, maxQueueWaitMillis, retryAfterSeconds));
+                proxyHandler.setResponseMemoryThreshold(responseMemoryThreshold);
+                proxyHandler.setThreadMode(threadMode);
+                proxyHandler.setHttp2(backendHttp2);
+                proxyHandler.setMaxConnections(maxBackendConnections);
+                proxyHandler.setMaxRequestsPerConnection(maxRequestsPerConnection);
+                proxyHandler.setMinConnections(minBackendConnections);
+                proxyHandler.setConnectTimeoutMillis(connectTimeoutMillis);
+                proxyHandler.setRequestTimeoutMillis(requestTimeoutMillis);
+                proxyHandler.setBackendCompression(backendCompressionMinBytes);
+                if (auditDirectory != null) {
+                    auditJournal = new AuditJournal(Path.of(auditDirectory), auditSampleRate, auditMaxPayloadBytes, auditSegmentBytes, auditMaxSegments);
+                    proxyHandler.setAuditJournal(auditJournal);
+                }
+                if (!cachedOperations.isEmpty()) {
+                    proxyHandler.setResponseCache(new ResponseCache(responseCacheBytes, cachedOperations));
+                }
+                if (!coalescedOperations.isEmpty()) {
+                    proxyHandler.setSingleFlight(new SingleFlight(coalescedOperations));
+                }
+                proxyServer = new ProxyServer(proxyHandler, idleTimeoutSeconds, host, port, threadMode);
+                proxyServer.setMetrics(proxyHandler.getMetrics(), metricsPort);
+                if (responseCompressionMinBytes > 0) {
+                    proxyServer.setCompression(responseCompressionMinBytes);
+                }
+                proxyServer.setWarmUp(warmUpCycles, () -> {
+                    wss.warmUp();
+                    return null;
+                });
                 proxyHandler.startClient();
                 proxyServer.start();
+                keystoreWatcher = new KeystoreWatcher(List.of(Path.of(keystoreFile), Path.of(truststoreFile)), keystorePollSeconds,
+                        () -> WssUtils.newWssUtils(keystoreFile, keystorePassword, keystoreAlias, truststoreFile, truststorePassword, Collections.emptyList()),
+                        proxyHandler::setWssUtils);
 
                 mainLoop.start();
             } else {
@@ -84,7 +216,13 @@ public class Main extends Thread {
                 Validate a SOAP Message Signature:
                    java -jar target/odido-wss-client-0.0.1-jar-with-dependencies.jar verify {signed input file}
                 Validate a SOAP Message Signature:
-                   java -jar target/odido-wss-client-0.0.1-jar-with-dependencies.jar proxy {server url}
+                   java -jar target/odido-wss-client-0.0.1-jar-with-dependencies.jar proxy {server url}[,{server url}...]
+                Warm up and exit (training run to create an AppCDS archive, see the appcds build profile):
+                   java -jar target/odido-wss-client-0.0.1-jar-with-dependencies.jar warmup
+                Sign all files in a directory or listed in a manifest file (one path per line), in parallel:
+                   java -jar target/odido-wss-client-0.0.1-jar-with-dependencies.jar sign-batch {input directory or manifest} {output directory}
+                Validate the signatures of all files in a directory or listed in a manifest file, in parallel:
+                   java -jar target/odido-wss-client-0.0.1-jar-with-dependencies.jar verify-batch {input directory or manifest}
                 """);
             }
 
@@ -99,10 +237,14 @@ public class Main extends Thread {
             @Override
             public void run() {
                 try {
+                    if (keystoreWatcher != null)
+                        keystoreWatcher.close();
                     if (proxyServer != null)
                         proxyServer.stop();
                     if (proxyHandler != null)
                         proxyHandler.stopClient();
+                    if (auditJournal != null)
+                        auditJournal.close();
                 } catch (Exception e) {
                     log.log(Level.SEVERE, e, () -> "Unexcepted exception at shutdown");
                 }
@@ -113,8 +255,24 @@ public class Main extends Thread {
     @Override
     public void run() {
         try {
+            AdmissionControl.Stats last = null;
+            AuditJournal.Stats lastAudit = null;
             while (true) {
                 sleep(10000);
+                if (proxyHandler != null) {
+                    AdmissionControl.Stats stats = proxyHandler.getAdmissionControl().getStats();
+                    if (!stats.equals(last)) {
+                        log.info("admission: " + stats);
+                        last = stats;
+                    }
+                }
+                if (auditJournal != null) {
+                    AuditJournal.Stats stats = auditJournal.getStats();
+                    if (!stats.equals(lastAudit)) {
+                        log.info("audit journal: " + stats);
+                        lastAudit = stats;
+                    }
+                }
             }
         } catch (InterruptedException ie) {
             log.log(Level.WARNING, ie, () -> "The thread was interrupted");
@@ -0,0 +1,68 @@
+package nl.odido.eai.wssclient;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A fixed-size pool of objects that are not safe for concurrent use (e.g. Merlin Crypto instances).
+ * Each object is used by at most one thread at a time; callers wait while all objects are in use.
+ * The pool does not use monitors, so waiting does not pin virtual threads.
+ * @param <T> Type of the pooled objects
+ */
+public class ObjectPool<T> {
+
+    /**
+     * An operation that uses a pooled object
+     */
+    @FunctionalInterface
+    public interface PoolFunction<T, R, E extends Exception> {
+        R apply(T pooled) throws E;
+    }
+
+    private final Queue<T> idle = new ConcurrentLinkedQueue<>();
+    private final Semaphore available;
+    private final int size;
+
+    /**
+     * Create a new pool
+     * @param objects The independent objects to pool. The list must not be empty
+     */
+    public ObjectPool(List<T> objects) {
+        if (objects.isEmpty()) {
+            throw new IllegalArgumentException("Pool must contain at least one object");
+        }
+        idle.addAll(objects);
+        size = objects.size();
+        available = new Semaphore(size);
+    }
+
+    /**
+     * Run an operation with exclusive use of one of the pooled objects
+     * @param function The operation
+     * @return Result of the operation
+     * @throws E Exception thrown by the operation
+     */
+    public <R, E extends Exception> R apply(PoolFunction<T, R, E> function) throws E {
+        available.acquireUninterruptibly();
+        T pooled = idle.poll();
+        try {
+            return function.apply(pooled);
+        } finally {
+            idle.offer(pooled);
+            available.release();
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return Number of pooled objects not in use at the moment
+     */
+    public int getAvailable() {
+        return available.availablePermits();
+    }
+}
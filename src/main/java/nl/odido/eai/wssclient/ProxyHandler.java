@@ -1,23 +1,42 @@
 package nl.odido.eai.wssclient;
 
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.apache.wss4j.dom.handler.WSHandlerResult;
+import org.eclipse.jetty.client.AbstractConnectionPool;
+import org.eclipse.jetty.client.DuplexConnectionPool;
 import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.client.HttpContentResponse;
+import org.eclipse.jetty.client.HttpClientTransport;
+import org.eclipse.jetty.client.HttpDestination;
 import org.eclipse.jetty.client.HttpRequest;
+import org.eclipse.jetty.client.MultiplexConnectionPool;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.dynamic.HttpClientTransportDynamic;
+import org.eclipse.jetty.client.http.HttpClientConnectionFactory;
 import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.client.util.ByteBufferRequestContent;
 import org.eclipse.jetty.client.util.StringRequestContent;
 import org.eclipse.jetty.http.*;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.ClientConnectionFactoryOverHTTP2;
+import org.eclipse.jetty.io.ByteBufferPool;
 import org.eclipse.jetty.io.ClientConnector;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.util.ByteArrayOutputStream2;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.w3c.dom.Document;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
@@ -27,22 +46,101 @@ import java.util.logging.Logger;
 /**
  * A Jetty HTTP request handler that
  * - signs SOAP requests received from the client
- * - forwards the signed request to the configured HTTPS server
+ * - forwards the signed request to the configured HTTPS server, or to a node of the back-end pool
+ *   that the {@link BackendRouter} selects for the request path
  * - validates the signature of the received response
  * - forwards the received response to the client
+ * Message bodies are handled as bytes, they are not decoded to Strings (except for FINE logging).
+ * Compressed (gzip, deflate) request bodies are decoded while they are parsed; signed requests can be sent gzip
+ * compressed to back-ends that accept it, and gzip responses of the back-end are decoded by the client as they arrive.
+ * Responses are buffered in memory up to a threshold, and spill over to a temporary file above it;
+ * large responses are verified with the streaming verifier, so the heap used does not depend on the response size.
+ * The response is released to the client only after its signature is verified.
+ * In async mode, the server thread is released while the back-end call is in progress.
+ * The back-end client speaks HTTP/1.1, or optionally HTTP/2 (negotiated with ALPN on TLS, with HTTP/1.1 as fallback),
+ * with a bounded connection pool; a minimum number of back-end connections can be kept open, so that requests
+ * do not pay the TLS handshake of a new connection.
+ * In both modes, the number of concurrent requests is limited by an {@link AdmissionControl}: excess requests
+ * wait in a bounded queue, and are answered with a 503 SOAP fault with Retry-After when the proxy is overloaded.
+ * The duration of each stage (parse, sign, render, back-end call, verify, write) and the response statuses
+ * are recorded in the {@link ProxyMetrics}.
+ * Signed requests and their responses are not logged (except at FINE), but recorded, sampled and truncated,
+ * in an optional {@link AuditJournal} that is written by a background thread.
+ * The verified responses of idempotent operations can be kept in a {@link ResponseCache}: a repeated request
+ * is then answered without signing, back-end call and verification. Identical concurrent requests to idempotent
+ * operations can be coalesced by a {@link SingleFlight}: one of them is sent, the others get its response.
  * Not for production use, because:
  * - does not validate the server certificates
  * - error handling and recovery is best-effort
- * - no performance tuning possibilities
  */
 public class ProxyHandler extends HandlerWrapper {
 
     static Logger log = Logger.getLogger(ProxyHandler.class.getName());
 
-    private final HttpClient httpClient;
-    private final String backendUrl;
-    private final WssUtils wss;
+    private final long idleTimeoutSeconds;
+    private HttpClient httpClient;
+    private BackendRouter router;
+    private volatile WssUtils wss;
     private final BigInteger certSerial;
+    private boolean asyncMode = false;
+    private ThreadPools.Mode threadMode = ThreadPools.Mode.PLATFORM;
+    private AdmissionControl admission = new AdmissionControl(256, 0, 60_000, 1);
+    private int responseMemoryThreshold = 1024 * 1024;
+    private final ProxyMetrics metrics = new ProxyMetrics();
+    private boolean http2 = false;
+    private int maxConnections = 64;
+    private int maxRequestsPerConnection = 0;
+    private int minConnections = 0;
+    private long connectTimeoutMillis = 1000L;
+    private long requestTimeoutMillis = 60_000L;
+    private AuditJournal auditJournal;
+    private ResponseCache responseCache;
+    private SingleFlight singleFlight;
+    private int backendCompressionMinBytes = 0;
+    private final Set<String> uncompressedBackends = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Maximum size of a request body that is looked up in the response cache or coalesced; larger requests are not
+     */
+    static final int MAX_CACHEABLE_REQUEST_BYTES = 64 * 1024;
+
+    /**
+     * Client request attribute with the back-end node chosen for the request
+     */
+    private static final String ROUTED = ProxyHandler.class.getName() + ".routed";
+
+    private record Routed(BackendPool pool, BackendPool.Backend backend) {}
+
+    /**
+     * Client request attribute with the signed body of a request sampled for the audit journal
+     */
+    private static final String AUDIT_REQUEST = ProxyHandler.class.getName() + ".auditRequest";
+
+    /**
+     * Client request attribute with the key of a request to a cacheable or coalesced operation
+     */
+    private static final String REQUEST_KEY = ProxyHandler.class.getName() + ".requestKey";
+
+    /**
+     * Client request attribute with the {@link SingleFlight.Call} of a coalesced request that is sent
+     */
+    private static final String CALL = ProxyHandler.class.getName() + ".call";
+
+    private record RequestKey(String key, String operation) {}
+
+    /**
+     * The unsigned body of a request, read before signing to look up the response cache or coalesce the request
+     * @param body The decoded body, or null if it is larger than {@link #MAX_CACHEABLE_REQUEST_BYTES}
+     * @param requestKey The request key, or null if the operation is neither cacheable nor coalesced
+     * @param rest If the decoded body is too large: the part read so far, followed by the unread part
+     */
+    private record ReadAhead(byte[] body, RequestKey requestKey, InputStream rest) {}
+
+    /**
+     * A request ready to be proxied: the signed request for the back-end, or a response from the cache
+     * or from an identical request in progress
+     */
+    private record Prepared(HttpRequest clientRequest, CompletableFuture<ResponseCache.CachedResponse> shared) {}
 
     /**
      * Create a new proxy handler
@@ -52,10 +150,11 @@ public class ProxyHandler extends HandlerWrapper {
      * @param certSerial Serial number of the back-end's trusted signer certificate (no validation done if null)
      */
     public ProxyHandler(long idleTimeoutSeconds, String backendUrl, WssUtils wss, BigInteger certSerial) {
-        httpClient = createClient(idleTimeoutSeconds);
-        this.backendUrl = backendUrl;
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+        this.router = BackendRouter.single(backendUrl);
         this.wss = wss;
         this.certSerial = certSerial;
+        metrics.setAdmission(() -> this.admission.getStats());
     }
 
     protected HttpClient createClient(long idleTimeoutSeconds) {
@@ -68,67 +167,507 @@ public class ProxyHandler extends HandlerWrapper {
         ClientConnector clientConnector = new ClientConnector();
         clientConnector.setSslContextFactory(sslContextFactory);
 
-        HttpClient client = getHttpClient(idleTimeoutSeconds, clientConnector);
+        HttpClient client = getHttpClient(idleTimeoutSeconds, clientConnector, threadMode);
 
-        log.info("created HTTPS client");
+        log.info("created HTTPS client with " + threadMode + " threads");
         return client;
     }
 
-    private static HttpClient getHttpClient(long idleTimeoutSeconds, ClientConnector clientConnector) {
-        HttpClient client = new HttpClient(new HttpClientTransportOverHTTP(clientConnector));
+    private HttpClient getHttpClient(long idleTimeoutSeconds, ClientConnector clientConnector, ThreadPools.Mode threadMode) {
+        HttpClientTransport transport;
+        if (http2) {
+            // the order is the ALPN preference: h2 if the back-end supports it, otherwise http/1.1
+            transport = new HttpClientTransportDynamic(clientConnector,
+                    new ClientConnectionFactoryOverHTTP2.HTTP2(new HTTP2Client(clientConnector)),
+                    HttpClientConnectionFactory.HTTP11);
+        } else {
+            transport = new HttpClientTransportOverHTTP(clientConnector);
+        }
+        int maxConnections = this.maxConnections;
+        int maxUsage = this.maxRequestsPerConnection;
+        boolean multiplex = http2;
+        transport.setConnectionPoolFactory(destination -> {
+            // the multiplex pool takes the stream limit of HTTP/2 connections from the back-end, and uses HTTP/1.1 connections one at a time
+            if (multiplex) {
+                MultiplexConnectionPool pool = new MultiplexConnectionPool(destination, maxConnections, destination, 1);
+                if (maxUsage > 0) {
+                    pool.setMaxUsageCount(maxUsage);
+                }
+                return pool;
+            }
+            DuplexConnectionPool pool = new DuplexConnectionPool(destination, maxConnections, destination);
+            if (maxUsage > 0) {
+                pool.setMaxUsageCount(maxUsage);
+            }
+            return pool;
+        });
 
-        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
-                4,
-                8,
-                idleTimeoutSeconds,
-                TimeUnit.SECONDS,
-                new SynchronousQueue<>());
+        HttpClient client = new HttpClient(transport);
 
-        threadPoolExecutor.prestartAllCoreThreads();
-        ExecutorThreadPool clientThreadPool = new ExecutorThreadPool(threadPoolExecutor);
+        ExecutorThreadPool clientThreadPool = ThreadPools.newThreadPool(threadMode, idleTimeoutSeconds);
 
         client.setExecutor(clientThreadPool);
-        client.setConnectTimeout(1000L);
+        client.setConnectTimeout(connectTimeoutMillis);
         client.setIdleTimeout(idleTimeoutSeconds * 1000);
+        client.setMaxConnectionsPerDestination(maxConnections);
         return client;
     }
 
+    /**
+     * @param asyncMode If true, requests are proxied with servlet async and non-blocking client calls
+     */
+    public void setAsyncMode(boolean asyncMode) {
+        this.asyncMode = asyncMode;
+    }
+
+    public boolean isAsyncMode() {
+        return asyncMode;
+    }
+
+    /**
+     * @param maxInFlight Maximum number of requests proxied concurrently. Excess requests get a 503 response at once
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.admission = new AdmissionControl(maxInFlight, 0, 60_000, 1);
+    }
+
+    /**
+     * @param admission Limits of the concurrent and queued requests
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    public AdmissionControl getAdmissionControl() {
+        return admission;
+    }
+
+    /**
+     * @param responseMemoryThreshold Maximum size in bytes of a back-end response kept in memory. Larger responses
+     *                                are spooled to a temporary file and verified with the streaming verifier
+     */
+    public void setResponseMemoryThreshold(int responseMemoryThreshold) {
+        this.responseMemoryThreshold = responseMemoryThreshold;
+    }
+
+    /**
+     * @param http2 If true, the back-end client negotiates HTTP/2 on TLS connections (ALPN), with HTTP/1.1 as fallback.
+     *              Plain HTTP back-ends are called with HTTP/1.1. Must be set before {@link #startClient()}
+     */
+    public void setHttp2(boolean http2) {
+        this.http2 = http2;
+    }
+
+    /**
+     * @param maxConnections Maximum number of connections to the back-end. Must be set before {@link #startClient()}
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @param maxRequestsPerConnection Number of requests after which a back-end connection is closed and replaced,
+     *                                 or 0 for no limit. Must be set before {@link #startClient()}
+     */
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+    }
+
+    /**
+     * @param minConnections Number of back-end connections opened at start, and reopened when they are closed
+     *                       (e.g. after the idle timeout). Must be set before {@link #startClient()}
+     */
+    public void setMinConnections(int minConnections) {
+        this.minConnections = minConnections;
+    }
+
+    /**
+     * @param connectTimeoutMillis Maximum time to set up a back-end connection. Must be set before {@link #startClient()}
+     */
+    public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * @param requestTimeoutMillis Maximum time of a back-end call, from sending the request to the end of the response,
+     *                             or 0 for no limit. A request that takes longer is answered with a 504 SOAP fault
+     */
+    public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+        this.requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    /**
+     * @param backendCompressionMinBytes Signed requests of at least this size are sent gzip compressed to the back-end,
+     *                                   or 0 to send all requests uncompressed. A back-end that answers a compressed
+     *                                   request with 415 (Unsupported Media Type) gets uncompressed requests from then on
+     */
+    public void setBackendCompression(int backendCompressionMinBytes) {
+        this.backendCompressionMinBytes = backendCompressionMinBytes;
+    }
+
+    /**
+     * @param router Routes the request paths to back-end pools, instead of the single back-end url of the constructor.
+     *               Must be set before {@link #startClient()}
+     */
+    public void setRouter(BackendRouter router) {
+        this.router = router;
+    }
+
+    /**
+     * @param auditJournal Records (sampled) signed requests and their responses, or null for no audit
+     */
+    public void setAuditJournal(AuditJournal auditJournal) {
+        this.auditJournal = auditJournal;
+    }
+
+    /**
+     * @param responseCache Cache of the verified responses of idempotent operations, or null for no caching
+     */
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+        metrics.setResponseCache(responseCache != null ? responseCache::getStats : () -> null);
+    }
+
+    /**
+     * @param singleFlight Coalesces identical concurrent requests to idempotent operations, or null for no coalescing
+     */
+    public void setSingleFlight(SingleFlight singleFlight) {
+        this.singleFlight = singleFlight;
+        metrics.setSingleFlight(singleFlight != null ? singleFlight::getStats : () -> null);
+    }
+
+    /**
+     * Replace the signing and verification context, e.g. after a keystore change. Each signature and verification
+     * uses the context current at its start, so the operations in progress finish on the old context.
+     * The response cache is cleared, its responses were verified with the old truststore
+     * @param wss The new WssUtils
+     */
+    public void setWssUtils(WssUtils wss) {
+        this.wss = wss;
+        ResponseCache responseCache = this.responseCache;
+        if (responseCache != null) {
+            responseCache.invalidateAll();
+        }
+    }
+
+    public WssUtils getWssUtils() {
+        return wss;
+    }
+
+    public ProxyMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param threadMode Run the client callbacks and the async pipeline stages on platform or virtual threads.
+     *                   Must be set before {@link #startClient()}
+     */
+    public void setThreadMode(ThreadPools.Mode threadMode) {
+        this.threadMode = threadMode;
+    }
+
     public void startClient() throws Exception {
+        httpClient = createClient(idleTimeoutSeconds);
         httpClient.start();
+        if (httpClient.getExecutor() instanceof ThreadPool threadPool) {
+            metrics.addThreadPool("client", threadPool);
+        }
+        if (minConnections > 0) {
+            maintainConnections(httpClient);
+        }
+        router.startHealthChecks(httpClient);
+    }
+
+    /**
+     * Open connections to every back-end node up to the minimum, and check again after half the idle timeout
+     */
+    private void maintainConnections(HttpClient client) {
+        if (!client.isRunning()) {
+            return;
+        }
+        for (BackendPool.Backend backend : router.getBackends()) {
+            try {
+                AbstractConnectionPool pool = backendConnectionPool(client, backend.url());
+                int missing = minConnections - pool.getConnectionCount();
+                if (missing > 0) {
+                    pool.preCreateConnections(missing).whenComplete((result, failure) -> {
+                        if (failure != null) {
+                            log.warning("could not open connections to " + backend + ": " + failure);
+                        } else {
+                            log.info("opened " + missing + " connections to " + backend);
+                        }
+                    });
+                }
+            } catch (Exception e) {
+                log.log(Level.WARNING, "could not open connections to " + backend, e);
+            }
+        }
+        client.getScheduler().schedule(() -> maintainConnections(client), Math.max(1, idleTimeoutSeconds / 2), TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return The connection pool of the (first) back-end, as used by the proxied requests
+     */
+    AbstractConnectionPool backendConnectionPool() {
+        return backendConnectionPool(httpClient, router.getBackends().get(0).url());
+    }
+
+    /**
+     * Each back-end node (origin) has its own connection pool in the client
+     */
+    private AbstractConnectionPool backendConnectionPool(HttpClient client, String url) {
+        HttpDestination destination = (HttpDestination) client.resolveDestination(newBackendRequest(client, url));
+        return (AbstractConnectionPool) destination.getConnectionPool();
+    }
+
+    /**
+     * A request to the back-end. HTTP/1.1 unless HTTP/2 is enabled and the back-end is called over TLS:
+     * then the protocol is negotiated. Requests with the same protocol choice share the connection pool
+     */
+    private HttpRequest newBackendRequest(HttpClient client, String url) {
+        HttpRequest request = (HttpRequest) client.newRequest(url);
+        if (!http2 || !HttpClient.isSchemeSecure(request.getScheme())) {
+            request.version(HttpVersion.HTTP_1_1);
+        }
+        return request;
     }
 
     public void stopClient() throws Exception {
-        httpClient.stop();
+        if (httpClient != null) {
+            metrics.removeThreadPool("client");
+            httpClient.stop();
+        }
     }
 
     @Override
     public void handle(String uri, final Request request, HttpServletRequest servletRequest,
                        HttpServletResponse servletResponse) throws IOException {
+        if (asyncMode) {
+            handleAsync(request, servletRequest, servletResponse);
+            return;
+        }
+        AdmissionControl admission = this.admission;
+        try {
+            admission.admit(request.getTimeStamp()).join();
+        } catch (CompletionException e) {
+            log.warning("proxy overloaded, rejecting request on path " + servletRequest.getRequestURI() + ": " + e.getCause().getMessage());
+            setOverloadedResponse(admission, servletResponse);
+            metrics.recordResponse(servletResponse.getStatus());
+            servletResponse.flushBuffer();
+            request.setHandled(true);
+            return;
+        }
         int errorStatus = 400;
         try {
             log.info("received request on path " + servletRequest.getRequestURI());
-            HttpRequest clientRequest = createClientRequest(servletRequest);
+            Prepared prepared = prepare(servletRequest);
             errorStatus = 500;
-            log.info("forwarding request to " + clientRequest.getURI().toString() + " " + clientRequest.getBody().getLength());
-            HttpContentResponse clientResponse = (HttpContentResponse) clientRequest.send();
-            log.info("received response with status " + clientResponse.getStatus());
-            setResponse(clientResponse, servletResponse);
-            log.info("forwarding response");
+            if (prepared.shared() != null) {
+                errorStatus = 502;      // the back-end call of the identical request failed
+                writeCached(prepared.shared().get(), servletResponse);
+            } else {
+                try {
+                    SpooledResponse clientResponse = send(prepared.clientRequest());
+                    log.info("received response with status " + clientResponse.response().getStatus());
+                    setResponse(clientResponse, servletResponse);
+                    log.info("forwarding response");
+                } finally {
+                    abandon(prepared.clientRequest(), null);
+                }
+            }
         } catch (Exception e) {
             log.log(Level.WARNING, "error proxying request", e);
-            setErrorResponse(errorStatus, e.toString(), servletResponse);
+            setErrorResponse(e instanceof TimeoutException ? 504 : errorStatus, e.toString(), servletResponse);
+        } finally {
+            admission.release();
         }
+        metrics.recordResponse(servletResponse.getStatus());
         servletResponse.flushBuffer();
         request.setHandled(true);
     }
 
+    /**
+     * A failed stage of the async pipeline, with the HTTP status to report to the client
+     */
+    private static class StageException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        StageException(int status, Throwable cause) {
+            super(cause);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Proxy a request as a chain of stages: sign, send, verify and write the response.
+     * The server thread returns after signing; the other stages run on client and server pool threads.
+     * A request that has to wait for admission is suspended, and signed when it gets a slot.
+     * A response from the cache is written at once, by the thread that looked it up; the response of an identical
+     * request in progress is written by a pool thread when it arrives
+     */
+    private void handleAsync(final Request request, HttpServletRequest servletRequest,
+                             HttpServletResponse servletResponse) throws IOException {
+        AdmissionControl admission = this.admission;
+        CompletableFuture<Void> admitted = admission.admit(request.getTimeStamp());
+        if (admitted.isCompletedExceptionally()) {
+            log.warning("proxy overloaded, rejecting request on path " + servletRequest.getRequestURI());
+            setOverloadedResponse(admission, servletResponse);
+            metrics.recordResponse(servletResponse.getStatus());
+            servletResponse.flushBuffer();
+            request.setHandled(true);
+            return;
+        }
+
+        AsyncContext asyncContext = servletRequest.startAsync();
+        asyncContext.setTimeout(0);     // the queue wait is limited by the admission control, the back-end call by the request timeout
+        request.setHandled(true);
+
+        Executor executor = ThreadPools.taskExecutor(getServer().getThreadPool());
+        CompletableFuture<Prepared> signed;
+        if (admitted.isDone()) {
+            try {
+                log.info("received request on path " + servletRequest.getRequestURI());
+                signed = CompletableFuture.completedFuture(prepare(servletRequest));
+            } catch (Exception e) {
+                signed = CompletableFuture.failedFuture(new StageException(400, e));
+            }
+        } else {
+            log.info("queued request on path " + servletRequest.getRequestURI());
+            signed = admitted.thenApplyAsync(v -> {
+                try {
+                    log.info("admitted request on path " + servletRequest.getRequestURI());
+                    return prepare(servletRequest);
+                } catch (Exception e) {
+                    throw new StageException(400, e);
+                }
+            }, executor);
+        }
+
+        signed.thenCompose(prepared -> prepared.shared() != null
+                        ? writeShared(prepared.shared(), servletResponse, executor)
+                        : sendAsync(prepared.clientRequest()).thenAcceptAsync(clientResponse -> {
+                            try {
+                                log.info("received response with status " + clientResponse.response().getStatus());
+                                setResponse(clientResponse, servletResponse);
+                                log.info("forwarding response");
+                            } catch (Exception e) {
+                                throw new StageException(500, e);
+                            }
+                        }, executor).whenComplete((result, failure) -> abandon(prepared.clientRequest(), failure)))
+                .whenComplete((result, failure) -> {
+                    try {
+                        if (failure != null) {
+                            Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                            if (cause instanceof AdmissionControl.OverloadedException) {
+                                log.warning("proxy overloaded, rejecting request on path " + servletRequest.getRequestURI() + ": " + cause.getMessage());
+                                setOverloadedResponse(admission, servletResponse);
+                            } else {
+                                int status = cause instanceof StageException se ? se.status : 500;
+                                Throwable error = cause instanceof StageException ? cause.getCause() : cause;
+                                log.log(Level.WARNING, "error proxying request", error);
+                                setErrorResponse(status, error.toString(), servletResponse);
+                            }
+                        }
+                        metrics.recordResponse(servletResponse.getStatus());
+                        servletResponse.flushBuffer();
+                    } catch (Exception e) {
+                        log.log(Level.WARNING, "error writing response", e);
+                    } finally {
+                        asyncContext.complete();
+                        if (!admitted.isCompletedExceptionally()) {
+                            admission.release();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * A received back-end response. The body must be closed after use
+     */
+    private record SpooledResponse(Response response, SpoolBuffer body) {}
+
+    /**
+     * Spools the response content as it arrives, in memory or (above the threshold) in a temporary file
+     */
+    private static class SpoolingResponseListener extends Response.Listener.Adapter {
+        private final SpoolBuffer body;
+        private final CompletableFuture<SpooledResponse> future = new CompletableFuture<>();
+
+        /**
+         * @param headBytes Number of first bytes kept in memory also when the body is spooled to a file
+         */
+        SpoolingResponseListener(int memoryThreshold, int headBytes) {
+            this.body = new SpoolBuffer(memoryThreshold, headBytes);
+        }
+
+        @Override
+        public void onContent(Response response, ByteBuffer content) {
+            try {
+                body.write(content);
+            } catch (IOException e) {
+                response.abort(e);
+            }
+        }
+
+        @Override
+        public void onComplete(Result result) {
+            if (result.isFailed()) {
+                body.close();
+                int status = result.getFailure() instanceof TimeoutException ? 504 : 500;
+                future.completeExceptionally(new StageException(status, result.getFailure()));
+            } else {
+                future.complete(new SpooledResponse(result.getResponse(), body));
+            }
+        }
+    }
+
+    private CompletableFuture<SpooledResponse> sendAsync(HttpRequest clientRequest) {
+        log.info("forwarding request to " + clientRequest.getURI().toString() + " " + clientRequest.getBody().getLength());
+        // the audit journal copies the start of a sampled response from memory, while the request thread writes it
+        AuditJournal auditJournal = this.auditJournal;
+        int auditBytes = auditJournal != null && clientRequest.getAttributes().containsKey(AUDIT_REQUEST)
+                ? auditJournal.getMaxPayloadBytes() : 0;
+        SpoolingResponseListener listener = new SpoolingResponseListener(responseMemoryThreshold, auditBytes);
+        long start = System.nanoTime();
+        clientRequest.send(listener);
+        return listener.future.whenComplete((response, failure) -> {
+            metrics.record(ProxyMetrics.Stage.BACKEND, start);
+            if (clientRequest.getAttributes().get(ROUTED) instanceof Routed routed) {
+                routed.pool().onComplete(routed.backend(), System.nanoTime() - start,
+                        failure == null && response.response().getStatus() < 500);
+                if (failure == null && response.response().getStatus() == HttpStatus.UNSUPPORTED_MEDIA_TYPE_415
+                        && clientRequest.getHeaders().contains(HttpHeader.CONTENT_ENCODING)
+                        && uncompressedBackends.add(routed.backend().url())) {
+                    log.warning("back-end " + routed.backend() + " does not accept compressed requests, sending them uncompressed");
+                }
+            }
+        });
+    }
+
+    private SpooledResponse send(HttpRequest clientRequest) throws Exception {
+        try {
+            return sendAsync(clientRequest).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof StageException ? e.getCause().getCause() : e.getCause();
+            throw cause instanceof Exception ex ? ex : e;
+        }
+    }
+
     private static final SortedSet<String> skippedHeaders = skippedHeaders();
 
+    /**
+     * The request headers that are not forwarded. The proxy decodes the request body, and sets its own content coding;
+     * the client asks the back-end for the codings that it can decode
+     */
     private static SortedSet<String> skippedHeaders () {
         SortedSet<String> set = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
         HttpHeader[] hdrs = {
                 HttpHeader.CONTENT_LENGTH,
-                HttpHeader.HOST
+                HttpHeader.HOST,
+                HttpHeader.CONTENT_ENCODING,
+                HttpHeader.ACCEPT_ENCODING
         };
         for (var h: hdrs) {
             set.add(h.lowerCaseName());
@@ -136,12 +675,211 @@ public class ProxyHandler extends HandlerWrapper {
         return set;
     }
 
-    private HttpRequest createClientRequest(HttpServletRequest servletRequest) throws Exception {
+    /**
+     * The back-end response headers that are not forwarded: the body is decoded, and its length is set by the proxy
+     */
+    private static final Set<HttpHeader> skippedResponseHeaders =
+            EnumSet.of(HttpHeader.CONTENT_ENCODING, HttpHeader.CONTENT_LENGTH, HttpHeader.TRANSFER_ENCODING);
+
+    /**
+     * The request transform of the proxy: sign a request body, with the DOM signer or (above the streaming threshold)
+     * with the streaming signer, as {@link WssUtils#signWSS(InputStream, long, java.io.OutputStream)} does
+     * @param body The request body. Parsed straight from the stream
+     * @param length Length of the body, or -1 if not known
+     * @return The signed body, in a buffer that is sent without copying
+     */
+    ByteBuffer signBody(InputStream body, long length) throws Exception {
+        return signBody(body, length, length > wss.getStreamingThreshold());
+    }
+
+    /**
+     * @param length Length of the body, or -1 if not known; the initial size of the output buffer
+     * @param streaming True to sign with the streaming signer, false to sign a DOM
+     */
+    private ByteBuffer signBody(InputStream body, long length, boolean streaming) throws Exception {
+        ByteArrayOutputStream2 signed = new ByteArrayOutputStream2((int) Math.min(Math.max(length, 0), Integer.MAX_VALUE - 8192) + 4096);
+        WssUtils wss = this.wss;
+        if (streaming) {
+            long start = System.nanoTime();
+            wss.signWSSStreaming(body, signed);
+            metrics.record(ProxyMetrics.Stage.SIGN, start);
+        } else {
+            long start = System.nanoTime();
+            Document document = XmlTools.parseXML(body);
+            metrics.record(ProxyMetrics.Stage.PARSE, start);
+            start = System.nanoTime();
+            wss.signWSS(document);
+            metrics.record(ProxyMetrics.Stage.SIGN, start);
+            start = System.nanoTime();
+            XmlTools.renderDOM(document, false, signed);
+            metrics.record(ProxyMetrics.Stage.RENDER, start);
+        }
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Signed request:\n" + signed.toString(StandardCharsets.UTF_8));
+        }
+        return ByteBuffer.wrap(signed.getBuf(), 0, signed.getCount());
+    }
+
+    /**
+     * Answer a request from the response cache, join an identical request in progress, or sign it for the back-end
+     */
+    private Prepared prepare(HttpServletRequest servletRequest) throws Exception {
+        ReadAhead readAhead = readAhead(servletRequest);
+        RequestKey requestKey = readAhead != null ? readAhead.requestKey() : null;
+        if (requestKey != null) {
+            ResponseCache responseCache = this.responseCache;
+            if (responseCache != null && responseCache.isCacheable(requestKey.operation())) {
+                ResponseCache.CachedResponse cached = responseCache.get(requestKey.key());
+                if (cached != null) {
+                    log.info("cached response for operation " + requestKey.operation());
+                    return new Prepared(null, CompletableFuture.completedFuture(cached));
+                }
+            }
+            SingleFlight singleFlight = this.singleFlight;
+            if (singleFlight != null && singleFlight.isCoalesced(requestKey.operation())) {
+                SingleFlight.Call call = singleFlight.join(requestKey.key());
+                if (!call.isLeader()) {
+                    log.info("coalesced request for operation " + requestKey.operation());
+                    return new Prepared(null, call.result());
+                }
+                try {
+                    HttpRequest clientRequest = createClientRequest(servletRequest, readAhead);
+                    clientRequest.attribute(CALL, call);
+                    return new Prepared(clientRequest, null);
+                } catch (Exception e) {
+                    call.fail(e);
+                    throw e;
+                }
+            }
+        }
+        return new Prepared(createClientRequest(servletRequest, readAhead), null);
+    }
+
+    /**
+     * Fail the followers of a coalesced request that ended without handing them its response; no effect otherwise
+     */
+    private static void abandon(HttpRequest clientRequest, Throwable failure) {
+        if (clientRequest.getAttributes().get(CALL) instanceof SingleFlight.Call call) {
+            call.fail(failure != null ? failure : new IllegalStateException("no response to share"));
+        }
+    }
+
+    /**
+     * Read the body of a request that may be answered from the response cache or coalesced: a request with a known,
+     * small length, to a cacheable or coalesced operation. The operation is the first element in the SOAP Body,
+     * which is what the back-end runs; a SOAPAction header that names another operation makes the request unshareable.
+     * The decoded body is read up to the same limit, so that a small compressed body cannot inflate in memory
+     * @return The unsigned (and decoded) body, or null if the request was not read
+     */
+    private ReadAhead readAhead(HttpServletRequest servletRequest) throws IOException {
+        long length = servletRequest.getContentLengthLong();
+        if ((responseCache == null && singleFlight == null) || length < 0 || length > MAX_CACHEABLE_REQUEST_BYTES) {
+            return null;
+        }
+        String soapAction = soapAction(servletRequest);
+        if (soapAction != null && !isShareable(soapAction)) {
+            return null;
+        }
+        InputStream inputStream = decodedBody(servletRequest);
+        byte[] body;
+        try {
+            body = inputStream.readNBytes(MAX_CACHEABLE_REQUEST_BYTES + 1);
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+        if (body.length > MAX_CACHEABLE_REQUEST_BYTES) {
+            // not cacheable; signed from the stream, as a request of unknown length
+            return new ReadAhead(null, null, new SequenceInputStream(new ByteArrayInputStream(body), inputStream));
+        }
+        inputStream.close();
+        String operation;
+        try {
+            operation = XmlTools.getSoapBodyElement(new ByteArrayInputStream(body));
+        } catch (Exception e) {
+            // not cacheable; the signer reports the error
+            return new ReadAhead(body, null, null);
+        }
+        if (operation == null || (soapAction != null && !soapAction.equals(operation))) {
+            if (soapAction != null) {
+                log.warning("SOAPAction " + soapAction + " does not match the operation " + operation + ", not shared");
+            }
+            return new ReadAhead(body, null, null);
+        }
         String path = servletRequest.getRequestURI();
-        String url = backendUrl + path;
-        HttpRequest clientRequest = (HttpRequest) httpClient.newRequest(url);
+        BackendPool pool = router.route(path);
+        return new ReadAhead(body, pool != null && isShareable(operation)
+                ? new RequestKey(ResponseCache.key(pool.getTarget(), path, operation, body), operation) : null, null);
+    }
+
+    /**
+     * @return True if the responses of the operation may be cached, or shared by identical requests
+     */
+    private boolean isShareable(String operation) {
+        ResponseCache responseCache = this.responseCache;
+        SingleFlight singleFlight = this.singleFlight;
+        return (responseCache != null && responseCache.isCacheable(operation))
+                || (singleFlight != null && singleFlight.isCoalesced(operation));
+    }
+
+    /**
+     * @return The SOAPAction header without quotes, or null if absent or empty
+     */
+    private static String soapAction(HttpServletRequest servletRequest) {
+        String action = servletRequest.getHeader("SOAPAction");
+        if (action == null) {
+            return null;
+        }
+        action = action.strip();
+        if (action.length() >= 2 && action.startsWith("\"") && action.endsWith("\"")) {
+            action = action.substring(1, action.length() - 1);
+        }
+        return action.isEmpty() ? null : action;
+    }
+
+    /**
+     * @return The request body, decoded as it is read if it is compressed
+     */
+    private static InputStream decodedBody(HttpServletRequest servletRequest) throws IOException {
+        return Compression.decode(servletRequest.getHeader(HttpHeader.CONTENT_ENCODING.asString()), servletRequest.getInputStream());
+    }
+
+    private HttpRequest createClientRequest(HttpServletRequest servletRequest, ReadAhead readAhead) throws Exception {
+        String path = servletRequest.getRequestURI();
+        BackendPool pool = router.route(path);
+        if (pool == null) {
+            throw new IllegalArgumentException("no back-end for path " + path);
+        }
+
+        ByteBuffer signed;
+        if (readAhead != null && readAhead.body() != null) {
+            signed = signBody(new ByteArrayInputStream(readAhead.body()), readAhead.body().length);
+        } else if (readAhead != null) {
+            try (InputStream inputStream = readAhead.rest()) {
+                signed = signBody(inputStream, -1, true);
+            }
+        } else if (Compression.isIdentity(servletRequest.getHeader(HttpHeader.CONTENT_ENCODING.asString()))) {
+            try (InputStream inputStream = servletRequest.getInputStream()) {
+                signed = inputStream != null ? signBody(inputStream, servletRequest.getContentLengthLong()) : null;
+            }
+        } else {
+            // the decoded length of a compressed body is not known: it is signed with the streaming signer
+            try (InputStream inputStream = decodedBody(servletRequest)) {
+                signed = signBody(inputStream, -1, true);
+            }
+        }
+
+        // choose the node last, so that every chosen node is released by sendAsync
+        BackendPool.Backend backend = pool.choose();
+        HttpRequest clientRequest = newBackendRequest(httpClient, backend.url() + path);
+        clientRequest.attribute(ROUTED, new Routed(pool, backend));
+        if (readAhead != null && readAhead.requestKey() != null) {
+            clientRequest.attribute(REQUEST_KEY, readAhead.requestKey());
+        }
         clientRequest.method(servletRequest.getMethod());
-        clientRequest.version(HttpVersion.HTTP_1_1);
+        if (requestTimeoutMillis > 0) {
+            clientRequest.timeout(requestTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
 
         Enumeration<String> headers = servletRequest.getHeaderNames();
         while (headers.hasMoreElements()) {
@@ -152,30 +890,77 @@ public class ProxyHandler extends HandlerWrapper {
             }
         }
 
-        try (InputStream inputStream = servletRequest.getInputStream()) {
-            if (inputStream != null) {
-                byte[] inputBytes = inputStream.readAllBytes();
-                String requestBody = new String(inputBytes, StandardCharsets.UTF_8);
-                String newBody = wss.signWSS(requestBody);
-                log.log(Level.INFO, "Signed request:\n" + newBody);
-                var content = new StringRequestContent(newBody);
-                clientRequest.body(content);
-                clientRequest.addHeader(new HttpField(HttpHeader.CONTENT_LENGTH, "" + content.getLength()));
-            } else {
-                clientRequest.body(new StringRequestContent(""));
+        if (signed != null) {
+            if (auditJournal != null && auditJournal.sample()) {
+                clientRequest.attribute(AUDIT_REQUEST, signed.duplicate());
+            }
+            ByteBuffer[] body = {signed};
+            if (backendCompressionMinBytes > 0 && signed.remaining() >= backendCompressionMinBytes
+                    && !uncompressedBackends.contains(backend.url())) {
+                // compressed into chunks of the client's buffer pool, released when the exchange is over
+                ByteBufferPool bufferPool = httpClient.getByteBufferPool();
+                ByteBuffer[] chunks = Compression.gzip(signed, bufferPool);
+                clientRequest.onComplete(result -> {
+                    for (ByteBuffer chunk : chunks) {
+                        bufferPool.release(chunk);
+                    }
+                });
+                body = chunks;
+                clientRequest.addHeader(new HttpField(HttpHeader.CONTENT_ENCODING, Compression.GZIP));
             }
+            var content = new ByteBufferRequestContent("text/xml; charset=utf-8", body);
+            clientRequest.body(content);
+            clientRequest.addHeader(new HttpField(HttpHeader.CONTENT_LENGTH, "" + content.getLength()));
+        } else {
+            clientRequest.body(new StringRequestContent(""));
         }
         return clientRequest;
     }
 
-    private void setResponse(HttpContentResponse clientResponse, HttpServletResponse servletResponse) throws Exception {
-        int status = clientResponse.getStatus();
-        String responseMessage = clientResponse.getContentAsString();
-        var responseHeaders = clientResponse.getHeaders();
-        log.info("Response message:\n" + responseMessage);
-        if (status == 200 && responseMessage != null && certSerial != null) {
+    private void setResponse(SpooledResponse clientResponse, HttpServletResponse servletResponse) throws Exception {
+        try (SpoolBuffer responseMessage = clientResponse.body()) {
             try {
-                WSHandlerResult verifyResult = wss.verifyWSS(responseMessage);
+                forwardResponse(clientResponse.response(), responseMessage, servletResponse);
+            } finally {
+                audit(clientResponse.response(), responseMessage, servletResponse.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Record the exchange in the audit journal, if the request was sampled
+     */
+    private void audit(Response response, SpoolBuffer responseMessage, int status) {
+        if (auditJournal != null && response.getRequest().getAttributes().get(AUDIT_REQUEST) instanceof ByteBuffer signed) {
+            auditJournal.record(response.getRequest().getPath(), status, signed, responseMessage);
+        }
+    }
+
+    private void forwardResponse(Response response, SpoolBuffer responseMessage, HttpServletResponse servletResponse) throws Exception {
+        int status = response.getStatus();
+        var responseHeaders = response.getHeaders();
+        if (log.isLoggable(Level.FINE)) {
+            log.fine(responseMessage.isInMemory()
+                    ? "Response message:\n" + new String(responseMessage.newInputStream().readAllBytes(), StandardCharsets.UTF_8)
+                    : "Response message: " + responseMessage.size() + " bytes, spooled to disk");
+        }
+        WssUtils verifiedWith = null;
+        if (status == 200 && certSerial != null) {
+            WssUtils wss = this.wss;
+            try (InputStream message = responseMessage.newInputStream()) {
+                WSHandlerResult verifyResult;
+                if (responseMessage.isInMemory()) {
+                    long start = System.nanoTime();
+                    Document document = XmlTools.parseXML(message);
+                    metrics.record(ProxyMetrics.Stage.PARSE, start);
+                    start = System.nanoTime();
+                    verifyResult = wss.verifyWSS(document);
+                    metrics.record(ProxyMetrics.Stage.VERIFY, start);
+                } else {
+                    long start = System.nanoTime();
+                    verifyResult = wss.verifyWSSStreaming(message);
+                    metrics.record(ProxyMetrics.Stage.VERIFY, start);
+                }
                 Set<BigInteger> serials = WssUtils.getSignerCertificateSerials(verifyResult);
                 if (!serials.contains(certSerial)) {
                     setErrorResponse(502, "Signing certificate is not authorised", servletResponse);
@@ -186,20 +971,115 @@ public class ProxyHandler extends HandlerWrapper {
                 setErrorResponse(502, "Error validating response signature", servletResponse);
                 return;
             }
+            verifiedWith = wss;
         }
+        share(response, responseMessage, verifiedWith);
+        long start = System.nanoTime();
+        copyHeaders(responseHeaders, servletResponse);
+        // status and length first: a large body commits the response while it is written
+        servletResponse.setStatus(status);
+        servletResponse.setContentLengthLong(responseMessage.size());
+        responseMessage.writeTo(servletResponse.getOutputStream());
+        metrics.record(ProxyMetrics.Stage.WRITE, start);
+    }
+
+    /**
+     * Hand a back-end response to the identical requests waiting for it, and store it in the cache if it was verified
+     * and the operation is cacheable. Responses spooled to disk are too large to share: the waiting requests fail.
+     * A response verified with a context that was replaced in the meantime is not cached: it is removed again if the
+     * context changed while it was stored, so that it cannot outlive the {@link #setWssUtils(WssUtils)} invalidation
+     * @param verifiedWith The context that verified the response, or null if it was not verified
+     */
+    private void share(Response response, SpoolBuffer responseMessage, WssUtils verifiedWith) throws IOException {
+        Map<String, Object> attributes = response.getRequest().getAttributes();
+        SingleFlight.Call call = attributes.get(CALL) instanceof SingleFlight.Call c ? c : null;
+        ResponseCache cache = verifiedWith != null && verifiedWith == this.wss ? this.responseCache : null;
+        RequestKey requestKey = attributes.get(REQUEST_KEY) instanceof RequestKey k ? k : null;
+        if ((call == null && (cache == null || requestKey == null)) || !responseMessage.isInMemory()) {
+            return;
+        }
+        byte[] body;
+        try (InputStream in = responseMessage.newInputStream()) {
+            body = in.readAllBytes();
+        }
+        var shared = new ResponseCache.CachedResponse(response.getStatus(), sharedHeaders(response.getHeaders()), body);
+        if (cache != null && requestKey != null) {
+            cache.put(requestKey.key(), requestKey.operation(), shared);
+            if (verifiedWith != this.wss) {
+                cache.invalidate(requestKey.key());
+            }
+        }
+        if (call != null) {
+            call.complete(shared);
+        }
+    }
+
+    /**
+     * Headers that belong to one client or one connection, not to the response: they are not cached or shared
+     */
+    private static final Set<HttpHeader> unsharedResponseHeaders = EnumSet.of(
+            HttpHeader.SET_COOKIE, HttpHeader.SET_COOKIE2, HttpHeader.CONNECTION, HttpHeader.KEEP_ALIVE,
+            HttpHeader.PROXY_AUTHENTICATE, HttpHeader.PROXY_AUTHORIZATION, HttpHeader.TE, HttpHeader.TRAILER,
+            HttpHeader.TRANSFER_ENCODING, HttpHeader.UPGRADE);
+
+    /**
+     * @return The headers of a back-end response that can be written to other clients: without cookies, and without
+     * the hop-by-hop headers (including those named in the Connection header)
+     */
+    private static HttpFields sharedHeaders(HttpFields headers) {
+        Set<String> connectionTokens = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        for (String value : headers.getValuesList(HttpHeader.CONNECTION)) {
+            for (String token : value.split(",")) {
+                connectionTokens.add(token.strip());
+            }
+        }
+        HttpFields.Mutable shared = HttpFields.build();
+        for (HttpField field : headers) {
+            if (!unsharedResponseHeaders.contains(field.getHeader()) && !connectionTokens.contains(field.getName())) {
+                shared.add(field);
+            }
+        }
+        return shared.asImmutable();
+    }
+
+    private void writeCached(ResponseCache.CachedResponse cached, HttpServletResponse servletResponse) throws IOException {
+        long start = System.nanoTime();
+        copyHeaders(cached.headers(), servletResponse);
+        servletResponse.setStatus(cached.status());
+        servletResponse.setContentLength(cached.body().length);
+        servletResponse.getOutputStream().write(cached.body());
+        metrics.record(ProxyMetrics.Stage.WRITE, start);
+    }
+
+    private static void copyHeaders(HttpFields responseHeaders, HttpServletResponse servletResponse) {
         Enumeration<String> headerNames = responseHeaders.getFieldNames();
         while (headerNames.hasMoreElements()) {
             String h = headerNames.nextElement();
-            String v = responseHeaders.get(h);
-            servletResponse.addHeader(h, v);
-        }
-        if (responseMessage == null) {
-            servletResponse.getOutputStream().print("");
-        } else {
-            servletResponse.getOutputStream().print(responseMessage);
-            servletResponse.setContentLength(servletResponse.getBufferSize());
+            if (!skippedResponseHeaders.contains(HttpHeader.CACHE.get(h))) {
+                servletResponse.addHeader(h, responseHeaders.get(h));
+            }
         }
-        servletResponse.setStatus(status);
+    }
+
+    /**
+     * Write a response from the cache at once, or the response of an identical request in progress when it arrives.
+     * The waiting requests are written by pool threads, not one after the other by the thread of the sent request
+     */
+    private CompletableFuture<Void> writeShared(CompletableFuture<ResponseCache.CachedResponse> shared,
+                                                HttpServletResponse servletResponse, Executor executor) {
+        return (shared.isDone() ? shared : shared.thenApplyAsync(response -> response, executor))
+                .handle((response, failure) -> {
+                    if (failure != null) {
+                        // the back-end call of the identical request failed
+                        throw new StageException(502, failure instanceof CompletionException ? failure.getCause() : failure);
+                    }
+                    try {
+                        writeCached(response, servletResponse);
+                        return null;
+                    } catch (IOException e) {
+                        throw new StageException(500, e);
+                    }
+                });
     }
 
     private final static String SOAP_FAULT = """
@@ -216,6 +1096,15 @@ public class ProxyHandler extends HandlerWrapper {
             """;
 
     private void setErrorResponse(int status, String description, HttpServletResponse servletResponse) throws IOException {
+        setErrorResponse(status, description, null, servletResponse);
+    }
+
+    /**
+     * @param retryAfterSeconds Value of the Retry-After header, or null for none. Headers must be set before the body:
+     *                          the response is committed when the body reaches its content length
+     */
+    private void setErrorResponse(int status, String description, Integer retryAfterSeconds,
+                                  HttpServletResponse servletResponse) throws IOException {
         String faultstring = description
                 .replace("&", "&amp;")
                 .replace("<", "&lt;")
@@ -224,10 +1113,18 @@ public class ProxyHandler extends HandlerWrapper {
         String body = SOAP_FAULT.replace("%%FAULTSTRING%%", faultstring);
         log.info("Error response: " + status + "\n" + body);
         servletResponse.reset();
-        servletResponse.setContentType("text/xml; charset=utf-8");
-        servletResponse.getOutputStream().print(body);
-        servletResponse.setContentLength(servletResponse.getBufferSize());
         servletResponse.setStatus(status);
+        if (retryAfterSeconds != null) {
+            servletResponse.setHeader(HttpHeader.RETRY_AFTER.asString(), "" + retryAfterSeconds);
+        }
+        servletResponse.setContentType("text/xml; charset=utf-8");
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        servletResponse.setContentLength(bytes.length);
+        servletResponse.getOutputStream().write(bytes);
+    }
+
+    private void setOverloadedResponse(AdmissionControl admission, HttpServletResponse servletResponse) throws IOException {
+        setErrorResponse(503, "Service overloaded, retry later", admission.getRetryAfterSeconds(), servletResponse);
     }
 
 }
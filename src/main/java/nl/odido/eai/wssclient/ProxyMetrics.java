@@ -0,0 +1,229 @@
+package nl.odido.eai.wssclient;
+
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.math.BigDecimal;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Low-overhead metrics of the proxy: a lock-free latency histogram per processing stage, the responses per HTTP status,
+ * the admission control, response cache and coalescing counters and the thread pool usage. Rendered in the Prometheus text format
+ */
+public class ProxyMetrics {
+
+    /**
+     * The processing stages of a proxied request
+     */
+    public enum Stage {
+        /**
+         * Parsing the request or the (in memory) response
+         */
+        PARSE,
+        /**
+         * Signing the request (parse and render included for the streaming signer)
+         */
+        SIGN,
+        /**
+         * Serializing the signed request
+         */
+        RENDER,
+        /**
+         * Sending the request to the back-end until the complete response is received
+         */
+        BACKEND,
+        /**
+         * Verifying the response signature (parse included for the streaming verifier)
+         */
+        VERIFY,
+        /**
+         * Writing the response to the client
+         */
+        WRITE
+    }
+
+    /**
+     * Prometheus histogram buckets, in microseconds
+     */
+    private static final long[] BUCKETS = {
+            500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000, 30_000_000
+    };
+
+    private final Map<Stage, LatencyHistogram> stages = new EnumMap<>(Stage.class);
+    private final Map<Integer, LongAdder> responses = new ConcurrentSkipListMap<>();
+    private final Map<String, ThreadPool> threadPools = new ConcurrentHashMap<>();
+    private volatile Supplier<AdmissionControl.Stats> admission = () -> null;
+    private volatile Supplier<ResponseCache.Stats> responseCache = () -> null;
+    private volatile Supplier<SingleFlight.Stats> singleFlight = () -> null;
+
+    public ProxyMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * @param stage A processing stage
+     * @param startNanos The {@link System#nanoTime()} at the start of the stage
+     */
+    public void record(Stage stage, long startNanos) {
+        stages.get(stage).record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return stages.get(stage);
+    }
+
+    /**
+     * @param status HTTP status of a response sent to the client
+     */
+    public void recordResponse(int status) {
+        responses.computeIfAbsent(status, s -> new LongAdder()).increment();
+    }
+
+    /**
+     * @return The number of responses sent per HTTP status
+     */
+    public Map<Integer, Long> getResponses() {
+        Map<Integer, Long> result = new TreeMap<>();
+        responses.forEach((status, count) -> result.put(status, count.sum()));
+        return result;
+    }
+
+    /**
+     * @param admission Supplies the current admission statistics
+     */
+    public void setAdmission(Supplier<AdmissionControl.Stats> admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * @param responseCache Supplies the current response cache statistics, or null if there is no cache
+     */
+    public void setResponseCache(Supplier<ResponseCache.Stats> responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * @param singleFlight Supplies the current coalescing statistics, or null if requests are not coalesced
+     */
+    public void setSingleFlight(Supplier<SingleFlight.Stats> singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    /**
+     * @param name Name of the pool in the metrics (e.g. server or client)
+     * @param threadPool A thread pool to report the usage of
+     */
+    public void addThreadPool(String name, ThreadPool threadPool) {
+        threadPools.put(name, threadPool);
+    }
+
+    public void removeThreadPool(String name) {
+        threadPools.remove(name);
+    }
+
+    /**
+     * @return All metrics in the Prometheus text exposition format (version 0.0.4)
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(8192);
+
+        out.append("# HELP wssproxy_stage_duration_seconds Duration of the processing stages of proxied requests\n");
+        out.append("# TYPE wssproxy_stage_duration_seconds histogram\n");
+        for (Map.Entry<Stage, LatencyHistogram> entry : stages.entrySet()) {
+            String stage = entry.getKey().name().toLowerCase(Locale.ROOT);
+            LatencyHistogram histogram = entry.getValue();
+            long[] cumulative = histogram.getCumulativeCounts(BUCKETS);
+            for (int i = 0; i < BUCKETS.length; i++) {
+                out.append("wssproxy_stage_duration_seconds_bucket{stage=\"").append(stage)
+                        .append("\",le=\"").append(seconds(BUCKETS[i])).append("\"} ").append(cumulative[i]).append('\n');
+            }
+            out.append("wssproxy_stage_duration_seconds_bucket{stage=\"").append(stage)
+                    .append("\",le=\"+Inf\"} ").append(cumulative[BUCKETS.length]).append('\n');
+            out.append("wssproxy_stage_duration_seconds_sum{stage=\"").append(stage).append("\"} ")
+                    .append(seconds(histogram.getSum())).append('\n');
+            out.append("wssproxy_stage_duration_seconds_count{stage=\"").append(stage).append("\"} ")
+                    .append(cumulative[BUCKETS.length]).append('\n');
+        }
+
+        out.append("# HELP wssproxy_responses_total Responses sent to the clients, per HTTP status\n");
+        out.append("# TYPE wssproxy_responses_total counter\n");
+        getResponses().forEach((status, count) ->
+                out.append("wssproxy_responses_total{status=\"").append(status).append("\"} ").append(count).append('\n'));
+
+        AdmissionControl.Stats stats = admission.get();
+        if (stats != null) {
+            gauge(out, "wssproxy_requests_in_flight", "Requests being proxied", stats.active());
+            gauge(out, "wssproxy_requests_queued", "Requests waiting for admission", stats.queued());
+            counter(out, "wssproxy_requests_admitted_total", "Requests admitted", stats.admitted());
+            counter(out, "wssproxy_requests_shed_total", "Requests rejected because the proxy is overloaded", stats.shed());
+        }
+
+        ResponseCache.Stats cache = responseCache.get();
+        if (cache != null) {
+            counter(out, "wssproxy_cache_hits_total", "Requests answered from the response cache", cache.hits());
+            counter(out, "wssproxy_cache_misses_total", "Cacheable requests not found in the response cache", cache.misses());
+            counter(out, "wssproxy_cache_evictions_total", "Responses evicted from, or not admitted to, the response cache", cache.evictions());
+            gauge(out, "wssproxy_cache_entries", "Responses in the response cache", cache.entries());
+            gauge(out, "wssproxy_cache_bytes", "Size of the responses in the response cache", cache.bytes());
+        }
+
+        SingleFlight.Stats coalescing = singleFlight.get();
+        if (coalescing != null) {
+            counter(out, "wssproxy_coalesced_leaders_total", "Coalescable requests sent to the back-end", coalescing.leaders());
+            counter(out, "wssproxy_coalesced_followers_total", "Requests answered with the response of an identical request in progress", coalescing.followers());
+            gauge(out, "wssproxy_coalesced_in_flight", "Coalescable back-end calls in progress", coalescing.inFlight());
+            long total = coalescing.leaders() + coalescing.followers();
+            out.append("# HELP wssproxy_coalescing_ratio Fraction of the coalescable requests answered by another request's back-end call\n");
+            out.append("# TYPE wssproxy_coalescing_ratio gauge\n");
+            out.append("wssproxy_coalescing_ratio ").append(total == 0 ? "0" : String.format(Locale.ROOT, "%.4f", (double) coalescing.followers() / total)).append('\n');
+        }
+
+        if (!threadPools.isEmpty()) {
+            Map<String, ThreadPool> pools = new TreeMap<>(threadPools);
+            out.append("# HELP wssproxy_pool_threads Threads of the thread pools\n");
+            out.append("# TYPE wssproxy_pool_threads gauge\n");
+            pools.forEach((name, pool) -> out.append("wssproxy_pool_threads{pool=\"").append(name).append("\"} ").append(pool.getThreads()).append('\n'));
+            out.append("# HELP wssproxy_pool_threads_busy Busy threads of the thread pools\n");
+            out.append("# TYPE wssproxy_pool_threads_busy gauge\n");
+            pools.forEach((name, pool) -> out.append("wssproxy_pool_threads_busy{pool=\"").append(name).append("\"} ")
+                    .append(pool.getThreads() - pool.getIdleThreads()).append('\n'));
+            out.append("# HELP wssproxy_pool_threads_max Maximum threads of the thread pools\n");
+            out.append("# TYPE wssproxy_pool_threads_max gauge\n");
+            pools.forEach((name, pool) -> {
+                if (pool instanceof ThreadPool.SizedThreadPool sized) {
+                    out.append("wssproxy_pool_threads_max{pool=\"").append(name).append("\"} ").append(sized.getMaxThreads()).append('\n');
+                }
+            });
+            out.append("# HELP wssproxy_pool_saturated 1 if the thread pool is low on threads\n");
+            out.append("# TYPE wssproxy_pool_saturated gauge\n");
+            pools.forEach((name, pool) -> out.append("wssproxy_pool_saturated{pool=\"").append(name).append("\"} ")
+                    .append(pool.isLowOnThreads() ? 1 : 0).append('\n'));
+        }
+        return out.toString();
+    }
+
+    private static String seconds(long micros) {
+        return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -1,25 +1,46 @@
 package nl.odido.eai.wssclient;
 
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.ConnectionFactory;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
 import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 
 /**
- * A simple embedded Jetty HTTP server with a request handler
+ * A simple embedded Jetty HTTP server with a request handler,
+ * and optionally a metrics and readiness endpoint on a separate port, with its own threads.
+ * An optional warm-up task runs on every request thread before the listener is opened.
+ * Responses can be gzip compressed for the clients that accept it
  * Not for production use!
  */
 public class ProxyServer {
 
     static Logger log = Logger.getLogger(ProxyServer.class.getName());
     final Server server;
+    Server metricsServer;
+    private final String host;
+    private Callable<?> warmUpTask;
+    private int warmUpCycles;
+    private volatile boolean ready = false;
 
     /**
      * Create a plain HTTP server
@@ -29,30 +50,175 @@ public class ProxyServer {
      * @param port TCP port to listen on
      */
     public ProxyServer(Handler handler, long idleTimeoutSeconds, String host, int port) {
-        server = createServer(handler, idleTimeoutSeconds, host, port);
+        this(handler, idleTimeoutSeconds, host, port, ThreadPools.Mode.PLATFORM);
     }
 
+    /**
+     * Create a plain HTTP server
+     * @param handler Handle all requests received by the server
+     * @param idleTimeoutSeconds Time before idle server threads are removed
+     * @param host IP address or host name to set up the listener on
+     * @param port TCP port to listen on
+     * @param threadMode Handle requests on platform or virtual threads
+     */
+    public ProxyServer(Handler handler, long idleTimeoutSeconds, String host, int port, ThreadPools.Mode threadMode) {
+        this.host = host;
+        server = createServer(handler, idleTimeoutSeconds, host, port, threadMode);
+    }
+
+    /**
+     * Serve the metrics in the Prometheus text format on GET /metrics of a separate port, so that they can be scraped
+     * when the request threads are saturated. Must be called before {@link #start()}
+     * @param metrics The metrics of the proxy handler. The usage of the server thread pool is added to them
+     * @param port TCP port of the metrics endpoint, on the same host as the server
+     */
+    public void setMetrics(ProxyMetrics metrics, int port) {
+        metrics.addThreadPool("server", server.getThreadPool());
+
+        QueuedThreadPool threadPool = new QueuedThreadPool(4, 1);
+        threadPool.setName("metrics");
+        metricsServer = new Server(threadPool);
+        metricsServer.setHandler(new MetricsHandler(metrics, this::isReady));
+
+        ServerConnector connector = new ServerConnector(metricsServer, 1, 1);
+        connector.setHost(host);
+        connector.setPort(port);
+        metricsServer.addConnector(connector);
+    }
+
+    /**
+     * Compress the responses for clients that accept gzip (Accept-Encoding), while they are written,
+     * with the pooled deflaters and buffers of Jetty's GzipHandler. Must be called before {@link #start()}
+     * @param minGzipSize Responses smaller than this (bytes) are not compressed
+     */
+    public void setCompression(int minGzipSize) {
+        GzipHandler gzipHandler = new GzipHandler();
+        gzipHandler.setIncludedMethods("GET", "POST");
+        gzipHandler.setMinGzipSize(minGzipSize);
+        gzipHandler.setHandler(server.getHandler());
+        server.setHandler(gzipHandler);
+    }
+
+    /**
+     * Run a task on every request thread before the listener is opened, e.g. to initialise the per-thread
+     * parser state and let the JIT compile the signing code. Must be called before {@link #start()}
+     * @param cycles Number of times the task runs on each thread
+     * @param task The task. Failures are logged, they do not stop the server start
+     */
+    public void setWarmUp(int cycles, Callable<?> task) {
+        this.warmUpCycles = cycles;
+        this.warmUpTask = task;
+    }
+
+    /**
+     * @return True when the server is warmed up and accepts requests
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Start the metrics endpoint (not ready yet), warm up, open the listener, and become ready
+     */
     public void start() throws Exception {
+        if (metricsServer != null) {
+            metricsServer.start();
+            log.info("started metrics server");
+        }
+        if (warmUpTask != null) {
+            warmUp();
+        }
         server.start();
+        ready = true;
         log.info("started HTTP server");
     }
 
+    /**
+     * Run the warm-up task concurrently on as many threads as the server pool has, so that every pool thread
+     * (or, with virtual threads, every pooled parser) is initialised
+     */
+    private void warmUp() throws InterruptedException {
+        ThreadPool threadPool = server.getThreadPool();
+        int threads = threadPool instanceof ThreadPool.SizedThreadPool sized ? sized.getMaxThreads() : 8;
+        Executor executor = ThreadPools.taskExecutor(threadPool);
+        CyclicBarrier allStarted = new CyclicBarrier(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            executor.execute(() -> {
+                try {
+                    // a thread that finished its task must not take another one
+                    allStarted.await(10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    log.fine("warm-up tasks did not start together: " + e);
+                }
+                try {
+                    for (int c = 0; c < warmUpCycles; c++) {
+                        warmUpTask.call();
+                    }
+                } catch (Exception e) {
+                    log.log(Level.WARNING, "warm-up failed", e);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        if (!done.await(2, TimeUnit.MINUTES)) {
+            log.warning("warm-up did not finish, starting anyway");
+        }
+        log.info("warmed up " + threads + " threads in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
     public void stop() throws Exception {
+        ready = false;
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
         server.stop();
         log.info("stopped HTTP server");
     }
 
-    protected Server createServer(Handler handler, long idleTimeoutSeconds, String host, int port) {
+    /**
+     * Serves the metrics on GET /metrics, and the readiness on GET /ready (200 when ready, 503 while starting or stopping)
+     */
+    static class MetricsHandler extends AbstractHandler {
+        private final ProxyMetrics metrics;
+        private final BooleanSupplier ready;
+
+        MetricsHandler(ProxyMetrics metrics, BooleanSupplier ready) {
+            this.metrics = metrics;
+            this.ready = ready;
+        }
+
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+            baseRequest.setHandled(true);
+            if (!"GET".equals(request.getMethod())) {
+                response.sendError(404);
+                return;
+            }
+            if ("/ready".equals(target)) {
+                boolean isReady = ready.getAsBoolean();
+                response.setStatus(isReady ? 200 : 503);
+                response.setContentType("text/plain; charset=utf-8");
+                response.getWriter().print(isReady ? "ready" : "not ready");
+                return;
+            }
+            if (!"/metrics".equals(target)) {
+                response.sendError(404);
+                return;
+            }
+            byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            response.setStatus(200);
+            response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+            response.setContentLength(body.length);
+            response.getOutputStream().write(body);
+        }
+    }
 
-        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
-                4,
-                8,
-                idleTimeoutSeconds,
-                TimeUnit.SECONDS,
-                new SynchronousQueue<>());
+    protected Server createServer(Handler handler, long idleTimeoutSeconds, String host, int port, ThreadPools.Mode threadMode) {
 
-        threadPoolExecutor.prestartAllCoreThreads();
-        ExecutorThreadPool serverThreadPool = new ExecutorThreadPool(threadPoolExecutor);
+        ExecutorThreadPool serverThreadPool = ThreadPools.newThreadPool(threadMode, idleTimeoutSeconds);
 
         HttpConnectionFactory httpConnectionFactory = new HttpConnectionFactory();
         ConnectionFactory[] factories = {httpConnectionFactory};
@@ -66,7 +232,7 @@ public class ProxyServer {
         connector.setIdleTimeout(idleTimeoutSeconds * 1000);
         server.addConnector(connector);
 
-        log.info("created HTTP server");
+        log.info("created HTTP server with " + threadMode + " threads");
         return server;
     }
 }
@@ -0,0 +1,298 @@
+package nl.odido.eai.wssclient;
+
+import org.eclipse.jetty.http.HttpFields;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of verified back-end responses to idempotent SOAP operations (lookups), so that a repeated request
+ * is answered without signing, back-end call and verification. Opt-in per operation, each with its own time-to-live.
+ * The key is a SHA-256 hash of the back-end pool, the request path, the operation and the unsigned request body.
+ * The proxy only stores responses that passed the signature verification and the signer certificate check.
+ * <p>
+ * Bounded by the total size of the cached bodies, with W-TinyLFU style eviction: new entries go to a small window
+ * (1% of the size); an entry that leaves the window is admitted to the main area only if it is requested more often
+ * than the main area's eviction victim, as estimated by a count-min frequency sketch. The main area evicts
+ * in CLOCK order (an entry that was read since its last pass gets a second chance).
+ * Lookups are lock-free; stores and evictions are serialized
+ */
+public class ResponseCache {
+
+    /**
+     * A cached response
+     * @param status HTTP status
+     * @param headers Response headers
+     * @param body Response body
+     */
+    public record CachedResponse(int status, HttpFields headers, byte[] body) {}
+
+    /**
+     * Cache counters
+     * @param hits Number of lookups that found a valid entry
+     * @param misses Number of lookups that did not
+     * @param evictions Number of entries evicted, or not admitted, because of the size limit
+     * @param entries Number of entries in the cache
+     * @param bytes Size of the entries in the cache
+     */
+    public record Stats(long hits, long misses, long evictions, int entries, long bytes) {}
+
+    private static final class Entry {
+        final String key;
+        final CachedResponse response;
+        final long expiresAt;
+        final long weight;
+        volatile boolean accessed;
+
+        Entry(String key, CachedResponse response, long expiresAt) {
+            this.key = key;
+            this.response = response;
+            this.expiresAt = expiresAt;
+            // the headers and the bookkeeping are counted as a fixed overhead
+            this.weight = response.body().length + 512L;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxWindowBytes;
+    private final Map<String, Long> ttlMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final FrequencySketch sketch;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // guarded by this
+    private final ArrayDeque<Entry> window = new ArrayDeque<>();
+    private final ArrayDeque<Entry> main = new ArrayDeque<>();
+    private long windowBytes;
+    private long mainBytes;
+
+    /**
+     * Create a new cache
+     * @param maxBytes Maximum total size of the cached responses
+     * @param ttlMillis The cacheable operations (local name of the first element in the SOAP Body),
+     *                  each with the time in milliseconds that its responses are served from the cache
+     */
+    public ResponseCache(long maxBytes, Map<String, Long> ttlMillis) {
+        this.maxBytes = maxBytes;
+        this.maxWindowBytes = Math.max(1, maxBytes / 100);
+        this.ttlMillis = Map.copyOf(ttlMillis);
+        // assume entries of about 1 KB for the sketch size
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(64, maxBytes / 1024)));
+    }
+
+    /**
+     * @param operation Local name of the first element in the SOAP Body
+     * @return True if the responses of the operation may be cached
+     */
+    public boolean isCacheable(String operation) {
+        return operation != null && ttlMillis.containsKey(operation);
+    }
+
+    /**
+     * @param target The back-end pool that the request is routed to ({@link BackendPool#getTarget()})
+     * @param path Request path
+     * @param operation Local name of the first element in the SOAP Body
+     * @param body Unsigned request body
+     * @return The cache key of the request
+     */
+    public static String key(String target, String path, String operation, byte[] body) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            for (String part : new String[] {target, path, operation}) {
+                sha256.update(part.getBytes(StandardCharsets.UTF_8));
+                sha256.update((byte) 0);
+            }
+            sha256.update(body);
+            return HexFormat.of().formatHex(sha256.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param key Cache key of the request
+     * @return The cached response, or null if not found or expired
+     */
+    public CachedResponse get(String key) {
+        sketch.increment(key.hashCode());
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt - System.currentTimeMillis() > 0) {
+            entry.accessed = true;
+            hits.increment();
+            return entry.response;
+        }
+        if (entry != null) {
+            entries.remove(key, entry);
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Store a verified response. Responses larger than 1/16 of the cache are not stored,
+     * so that one response does not flush the cache
+     * @param key Cache key of the request
+     * @param operation The (cacheable) operation of the request
+     * @param response The response
+     */
+    public void put(String key, String operation, CachedResponse response) {
+        Long ttl = ttlMillis.get(operation);
+        if (ttl == null || response.body().length > maxBytes / 16) {
+            return;
+        }
+        Entry entry = new Entry(key, response, System.currentTimeMillis() + ttl);
+        synchronized (this) {
+            entries.put(key, entry);
+            window.addLast(entry);
+            windowBytes += entry.weight;
+            while (windowBytes > maxWindowBytes && !window.isEmpty()) {
+                Entry candidate = window.pollFirst();
+                windowBytes -= candidate.weight;
+                if (isLive(candidate, System.currentTimeMillis())) {
+                    admit(candidate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Move an entry from the window to the main area, if it is requested more often than the entries it would evict
+     */
+    private void admit(Entry candidate) {
+        long now = System.currentTimeMillis();
+        int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+        while (windowBytes + mainBytes + candidate.weight > maxBytes) {
+            Entry victim = main.pollFirst();
+            if (victim == null) {
+                reject(candidate);
+                return;
+            }
+            if (!isLive(victim, now)) {
+                mainBytes -= victim.weight;
+                entries.remove(victim.key, victim);
+            } else if (victim.accessed) {
+                // second chance
+                victim.accessed = false;
+                main.addLast(victim);
+            } else if (candidateFrequency > sketch.frequency(victim.key.hashCode())) {
+                mainBytes -= victim.weight;
+                reject(victim);
+            } else {
+                main.addFirst(victim);
+                reject(candidate);
+                return;
+            }
+        }
+        main.addLast(candidate);
+        mainBytes += candidate.weight;
+    }
+
+    /**
+     * @return True if the entry is still the current one of its key, and not expired
+     */
+    private boolean isLive(Entry entry, long now) {
+        return entries.get(entry.key) == entry && entry.expiresAt - now > 0;
+    }
+
+    private void reject(Entry entry) {
+        entries.remove(entry.key, entry);
+        evictions.increment();
+    }
+
+    /**
+     * Remove the entry of a key, if any. Its size is released when it leaves the window or the main area,
+     * as for an expired entry
+     * @param key Cache key of the request
+     */
+    public void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Remove all entries, e.g. after the truststore changed
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        window.clear();
+        main.clear();
+        windowBytes = 0;
+        mainBytes = 0;
+    }
+
+    public Stats getStats() {
+        long bytes;
+        synchronized (this) {
+            bytes = windowBytes + mainBytes;
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), entries.size(), bytes);
+    }
+
+    /**
+     * Count-min sketch of the request frequencies: 4 rows of 4-bit (saturating) counters.
+     * All counters are halved after a number of increments, so that old popularity fades out
+     */
+    static final class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0xb4b82e6d, 0x5ba8c9f1, 0x3c6ef372};
+        private static final int MAX_COUNT = 15;
+
+        private final AtomicIntegerArray counters;
+        private final int mask;
+        private final int sampleSize;
+        private final AtomicInteger additions = new AtomicInteger();
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1)) << 1;
+            this.counters = new AtomicIntegerArray(width * SEEDS.length);
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < SEEDS.length; row++) {
+                int index = index(hash, row);
+                int count = counters.get(index);
+                if (count < MAX_COUNT) {
+                    added |= counters.compareAndSet(index, count, count + 1);
+                }
+            }
+            if (added && additions.incrementAndGet() >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < SEEDS.length; row++) {
+                frequency = Math.min(frequency, counters.get(index(hash, row)));
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 17;
+            return row * (mask + 1) + (h & mask);
+        }
+
+        private synchronized void reset() {
+            if (additions.get() < sampleSize) {
+                return;
+            }
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, counters.get(i) >>> 1);
+            }
+            additions.set(additions.get() / 2);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package nl.odido.eai.wssclient;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.xml.namespace.QName;
+
+import org.apache.wss4j.common.WSEncryptionPart;
+import org.apache.wss4j.common.crypto.Crypto;
+import org.apache.wss4j.common.crypto.CryptoBase;
+import org.apache.wss4j.common.crypto.CryptoType;
+import org.apache.wss4j.common.ext.WSPasswordCallback;
+import org.apache.wss4j.common.ext.WSSecurityException;
+import org.apache.wss4j.dom.WSConstants;
+import org.apache.wss4j.dom.message.WSSecHeader;
+import org.apache.wss4j.dom.message.WSSecSignature;
+import org.apache.wss4j.stax.ext.WSSConstants;
+import org.apache.wss4j.stax.ext.WSSSecurityProperties;
+import org.apache.wss4j.stax.securityToken.WSSecurityTokenConstants;
+import org.apache.xml.security.stax.ext.SecurePart;
+import org.apache.xml.security.stax.ext.XMLSecurityConstants;
+
+/**
+ * The signing key, certificate and algorithm choices, resolved once from the keystore.
+ * Immutable and shared by all signing threads: the keystore is not used after the context is created
+ */
+public class SigningContext {
+
+    /**
+     * A message part to be signed
+     * @param name Local name of the element
+     * @param namespace Namespace URI of the element
+     */
+    public record SignedPart(String name, String namespace) {}
+
+    static final List<SignedPart> defaultSignedParts = List.of(
+            new SignedPart(WSConstants.TIMESTAMP_TOKEN_LN, WSConstants.WSU_NS),
+            new SignedPart(WSConstants.ELEM_BODY, WSConstants.URI_SOAP11_ENV)
+    );
+
+    private final String alias;
+    private final String password;
+    private final PrivateKey privateKey;
+    private final X509Certificate[] certificates;
+    private final String binarySecurityTokenValue;
+    private final String signatureAlgorithm;
+    private final String digestAlgorithm;
+    private final String canonicalizationAlgorithm;
+    private final List<SignedPart> signedParts;
+    private final Crypto crypto;
+
+    /**
+     * Resolve the signing material from a keystore
+     * @param keystore The keystore, where the signing key-certificate pair is
+     * @param alias Alias of the signing key
+     * @param password Password of the signing key
+     * @return A new signing context
+     * @throws WSSecurityException
+     */
+    public static SigningContext load(Crypto keystore, String alias, String password) throws WSSecurityException {
+        CryptoType cryptoType = new CryptoType(CryptoType.TYPE.ALIAS);
+        cryptoType.setAlias(alias);
+        X509Certificate[] certificates = keystore.getX509Certificates(cryptoType);
+        if (certificates == null || certificates.length == 0) {
+            throw new WSSecurityException(WSSecurityException.ErrorCode.FAILURE, "noUserCertsFound",
+                    new Object[] {alias});
+        }
+        PrivateKey privateKey = keystore.getPrivateKey(alias, password);
+        return new SigningContext(alias, password, privateKey, certificates, defaultSignedParts);
+    }
+
+    private SigningContext(String alias, String password, PrivateKey privateKey, X509Certificate[] certificates,
+                           List<SignedPart> signedParts) throws WSSecurityException {
+        this.alias = alias;
+        this.password = password;
+        this.privateKey = privateKey;
+        this.certificates = certificates;
+        this.signedParts = signedParts;
+        try {
+            this.binarySecurityTokenValue = Base64.getMimeEncoder().encodeToString(certificates[0].getEncoded());
+        } catch (Exception e) {
+            throw new WSSecurityException(WSSecurityException.ErrorCode.FAILURE, e);
+        }
+        // same algorithms as the WSS4J defaults, so that the signed messages do not change on the wire
+        this.signatureAlgorithm = signatureAlgorithm(certificates[0].getPublicKey());
+        this.digestAlgorithm = WSConstants.SHA1;
+        this.canonicalizationAlgorithm = WSConstants.C14N_EXCL_OMIT_COMMENTS;
+        this.crypto = new PreloadedCrypto();
+    }
+
+    private static String signatureAlgorithm(PublicKey publicKey) throws WSSecurityException {
+        return switch (publicKey.getAlgorithm().toUpperCase()) {
+            case "RSA" -> WSConstants.RSA;
+            case "DSA" -> WSConstants.DSA;
+            case "EC" -> WSConstants.ECDSA_SHA256;
+            default -> throw new WSSecurityException(WSSecurityException.ErrorCode.FAILURE, "unknownSignatureAlgorithm",
+                    new Object[] {publicKey.getAlgorithm()});
+        };
+    }
+
+    /**
+     * Create a signature builder for one message, configured with the resolved signing material
+     * @param secHeader The security header of the message
+     * @return A new signature builder. Build it with {@link #getCrypto()}
+     */
+    public WSSecSignature newSignatureBuilder(WSSecHeader secHeader) {
+        WSSecSignature builder = new WSSecSignature(secHeader);
+        builder.setUserInfo(alias, password);
+        builder.setX509Certificate(certificates[0]);
+        builder.setKeyIdentifierType(WSConstants.BST_DIRECT_REFERENCE);
+        builder.setSignatureAlgorithm(signatureAlgorithm);
+        builder.setDigestAlgo(digestAlgorithm);
+        builder.setSigCanonicalization(canonicalizationAlgorithm);
+        builder.prependBSTElementToHeader();
+
+        for (SignedPart part : signedParts) {
+            builder.getParts().add(new WSEncryptionPart(part.name(), part.namespace(), ""));
+        }
+        return builder;
+    }
+
+    /**
+     * Create the configuration of the streaming (StAX) signer, with the same signing material, algorithms
+     * and signed parts as {@link #newSignatureBuilder(WSSecHeader)}
+     * @return New security properties for a timestamp and a signature
+     */
+    public WSSSecurityProperties newStreamingProperties() {
+        WSSSecurityProperties properties = new WSSSecurityProperties();
+        List<XMLSecurityConstants.Action> actions = new ArrayList<>();
+        actions.add(WSSConstants.TIMESTAMP);
+        actions.add(WSSConstants.SIGNATURE);
+        properties.setActions(actions);
+        properties.setSignatureCrypto(crypto);
+        properties.setSignatureUser(alias);
+        properties.setCallbackHandler(callbacks -> {
+            for (Callback callback : callbacks) {
+                if (callback instanceof WSPasswordCallback passwordCallback) {
+                    passwordCallback.setPassword(password);
+                }
+            }
+        });
+        properties.setSignatureKeyIdentifier(WSSecurityTokenConstants.KEYIDENTIFIER_SECURITY_TOKEN_DIRECT_REFERENCE);
+        properties.setSignatureAlgorithm(signatureAlgorithm);
+        properties.setSignatureDigestAlgorithm(digestAlgorithm);
+        properties.setSignatureCanonicalizationAlgorithm(canonicalizationAlgorithm);
+
+        for (SignedPart part : signedParts) {
+            properties.addSignaturePart(new SecurePart(new QName(part.namespace(), part.name()), SecurePart.Modifier.Element));
+        }
+        return properties;
+    }
+
+    /**
+     * @return A thread-safe Crypto that serves the resolved key and certificates without keystore lookups
+     */
+    public Crypto getCrypto() {
+        return crypto;
+    }
+
+    public PrivateKey getPrivateKey() {
+        return privateKey;
+    }
+
+    public X509Certificate getCertificate() {
+        return certificates[0];
+    }
+
+    /**
+     * @return The base64 encoded signing certificate, as in the BinarySecurityToken
+     */
+    public String getBinarySecurityTokenValue() {
+        return binarySecurityTokenValue;
+    }
+
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    public String getCanonicalizationAlgorithm() {
+        return canonicalizationAlgorithm;
+    }
+
+    public List<SignedPart> getSignedParts() {
+        return signedParts;
+    }
+
+    /**
+     * Crypto implementation for signing only, backed by the resolved key and certificates
+     */
+    private class PreloadedCrypto extends CryptoBase {
+
+        @Override
+        public X509Certificate[] getX509Certificates(CryptoType cryptoType) {
+            return certificates.clone();
+        }
+
+        @Override
+        public String getX509Identifier(X509Certificate cert) {
+            return alias;
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(X509Certificate certificate, CallbackHandler callbackHandler) {
+            return privateKey;
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(PublicKey publicKey, CallbackHandler callbackHandler) {
+            return privateKey;
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String identifier, String password) {
+            return privateKey;
+        }
+
+        @Override
+        public void verifyTrust(X509Certificate[] certs, boolean enableRevocation,
+                                Collection<Pattern> subjectCertConstraints, Collection<Pattern> issuerCertConstraints) throws WSSecurityException {
+            throw new WSSecurityException(WSSecurityException.ErrorCode.FAILURE, "invalidCryptoProvider");
+        }
+
+        @Override
+        public void verifyTrust(PublicKey publicKey) throws WSSecurityException {
+            throw new WSSecurityException(WSSecurityException.ErrorCode.FAILURE, "invalidCryptoProvider");
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package nl.odido.eai.wssclient;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces identical concurrent requests to idempotent operations: the first request (the leader) is signed
+ * and sent to the back-end, the requests that arrive while it is in progress (the followers) wait for its
+ * response instead. The key is the same as the {@link ResponseCache} key: a hash of the back-end pool,
+ * the path, the operation and the unsigned body.
+ * A call is removed as soon as it completes, so a later request starts a new call (or is answered from the cache)
+ */
+public class SingleFlight {
+
+    /**
+     * Coalescing counters. The coalescing ratio is followers / (leaders + followers)
+     * @param leaders Number of requests sent to the back-end
+     * @param followers Number of requests that waited for the response of an identical request
+     * @param inFlight Number of calls in progress
+     */
+    public record Stats(long leaders, long followers, int inFlight) {}
+
+    /**
+     * A request's part in a call
+     */
+    public final class Call {
+        private final String key;
+        private final CompletableFuture<ResponseCache.CachedResponse> result;
+        private final boolean leader;
+
+        private Call(String key, CompletableFuture<ResponseCache.CachedResponse> result, boolean leader) {
+            this.key = key;
+            this.result = result;
+            this.leader = leader;
+        }
+
+        /**
+         * @return True if the request must be sent, and the call completed with its response
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * @return The response of the leader
+         */
+        public CompletableFuture<ResponseCache.CachedResponse> result() {
+            return result;
+        }
+
+        /**
+         * Hand the response of the leader to the followers
+         */
+        public void complete(ResponseCache.CachedResponse response) {
+            calls.remove(key, result);
+            result.complete(response);
+        }
+
+        /**
+         * Fail the followers; no effect if the call was completed already
+         */
+        public void fail(Throwable failure) {
+            calls.remove(key, result);
+            result.completeExceptionally(failure);
+        }
+    }
+
+    private final Set<String> operations;
+    private final Map<String, CompletableFuture<ResponseCache.CachedResponse>> calls = new ConcurrentHashMap<>();
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder followers = new LongAdder();
+
+    /**
+     * @param operations The idempotent operations (local name of the first element in the SOAP Body)
+     */
+    public SingleFlight(Set<String> operations) {
+        this.operations = Set.copyOf(operations);
+    }
+
+    /**
+     * @param operation Local name of the first element in the SOAP Body
+     * @return True if identical requests to the operation may be coalesced
+     */
+    public boolean isCoalesced(String operation) {
+        return operation != null && operations.contains(operation);
+    }
+
+    /**
+     * Join the call in progress for a key, or start one
+     * @param key Key of the request
+     * @return The call; the leader must complete or fail it
+     */
+    public Call join(String key) {
+        CompletableFuture<ResponseCache.CachedResponse> result = new CompletableFuture<>();
+        CompletableFuture<ResponseCache.CachedResponse> existing = calls.putIfAbsent(key, result);
+        if (existing == null) {
+            leaders.increment();
+            return new Call(key, result, true);
+        }
+        followers.increment();
+        return new Call(key, existing, false);
+    }
+
+    public Stats getStats() {
+        return new Stats(leaders.sum(), followers.sum(), calls.size());
+    }
+}
@@ -0,0 +1,172 @@
+package nl.odido.eai.wssclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jetty.util.ByteArrayOutputStream2;
+
+/**
+ * A write-once buffer of a message body. It is kept in memory up to a threshold;
+ * larger bodies spill over to a temporary file, so the heap used does not depend on the message size.
+ * The content can be read any number of times after writing. The first bytes can be kept in memory as well,
+ * so that a copy of them (e.g. for the audit journal) does not read the file. Not thread-safe
+ */
+public class SpoolBuffer extends OutputStream {
+
+    static Logger log = Logger.getLogger(SpoolBuffer.class.getName());
+
+    private final int memoryThreshold;
+    private final int headBytes;
+    private ByteArrayOutputStream2 memory;
+    private byte[] head;
+    private int headCount;
+    private Path file;
+    private FileChannel fileChannel;
+    private long size = 0;
+
+    /**
+     * @param memoryThreshold Maximum number of bytes kept in memory
+     */
+    public SpoolBuffer(int memoryThreshold) {
+        this(memoryThreshold, 0);
+    }
+
+    /**
+     * @param memoryThreshold Maximum number of bytes kept in memory
+     * @param headBytes Number of first bytes that are kept in memory also when the content spills over to a file
+     */
+    public SpoolBuffer(int memoryThreshold, int headBytes) {
+        this.memoryThreshold = memoryThreshold;
+        this.headBytes = headBytes;
+        this.memory = new ByteArrayOutputStream2(Math.min(memoryThreshold, 8192));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Append the remaining bytes of a buffer. The buffer is consumed
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        int len = buffer.remaining();
+        if (fileChannel == null && size + len > memoryThreshold) {
+            spill();
+        }
+        if (fileChannel != null) {
+            if (headCount < head.length) {
+                int n = Math.min(len, head.length - headCount);
+                buffer.duplicate().get(head, headCount, n);
+                headCount += n;
+            }
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+        } else if (buffer.hasArray()) {
+            memory.write(buffer.array(), buffer.arrayOffset() + buffer.position(), len);
+            buffer.position(buffer.limit());
+        } else {
+            byte[] bytes = new byte[len];
+            buffer.get(bytes);
+            memory.write(bytes);
+        }
+        size += len;
+    }
+
+    private void spill() throws IOException {
+        file = Files.createTempFile("wss-proxy-", ".spool");
+        fileChannel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        ByteBuffer buffered = ByteBuffer.wrap(memory.getBuf(), 0, memory.getCount());
+        while (buffered.hasRemaining()) {
+            fileChannel.write(buffered);
+        }
+        head = Arrays.copyOf(memory.getBuf(), headBytes);
+        headCount = Math.min(headBytes, memory.getCount());
+        memory = null;
+        log.fine(() -> "spooling message body to " + file);
+    }
+
+    /**
+     * @return Number of bytes written
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return True if the content is in memory, false if it spilled over to a file
+     */
+    public boolean isInMemory() {
+        return fileChannel == null;
+    }
+
+    /**
+     * Copy the first bytes of the content, from memory only
+     * @param max Maximum number of bytes copied
+     * @return The first bytes written, at most max and, if the content spilled over to a file,
+     * at most the head size of the constructor
+     */
+    public byte[] head(int max) {
+        if (isInMemory()) {
+            return Arrays.copyOf(memory.getBuf(), Math.min(max, memory.getCount()));
+        }
+        return Arrays.copyOf(head, Math.min(max, headCount));
+    }
+
+    /**
+     * @return A new stream of the content written so far
+     */
+    public InputStream newInputStream() throws IOException {
+        if (isInMemory()) {
+            return new ByteArrayInputStream(memory.getBuf(), 0, memory.getCount());
+        }
+        return Files.newInputStream(file);
+    }
+
+    /**
+     * Copy the content to a stream
+     * @param out Stream to write to. It is not closed
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (isInMemory()) {
+            out.write(memory.getBuf(), 0, memory.getCount());
+        } else {
+            try (InputStream in = newInputStream()) {
+                in.transferTo(out);
+            }
+        }
+    }
+
+    /**
+     * Release the content and delete the temporary file, if any
+     */
+    @Override
+    public void close() {
+        memory = null;
+        head = null;
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "could not delete spool file " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package nl.odido.eai.wssclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.XMLConstants;
+
+import org.apache.wss4j.common.ext.WSSecurityException;
+import org.apache.wss4j.dom.WSConstants;
+import org.apache.xml.security.Init;
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A fast path of the DOM signer for the common message shape: a SOAP 1.1 Envelope with a Body, and a Header
+ * without a security header (or no Header). The fixed parts of the security header, i.e. the BinarySecurityToken,
+ * the algorithms and the canonical form of the SignedInfo and the Timestamp, are prepared once; per message only
+ * the ids, the timestamp, the two digests and the signature value are filled in, and only the Body is canonicalized.
+ * The signed message has the same structure, algorithms and signed parts as the WSS4J signer produces
+ * (without InclusiveNamespaces prefix lists, like the streaming signer). Messages of another shape are not changed,
+ * and are left to the WSS4J signer.
+ * Thread-safe
+ */
+public class TemplateSigner {
+
+    private static final String SOAP_NS = WSConstants.URI_SOAP11_ENV;
+    private static final String WSSE_NS = WSConstants.WSSE_NS;
+    private static final String WSU_NS = WSConstants.WSU_NS;
+    private static final String DS_NS = WSConstants.SIG_NS;
+    private static final String XMLNS_NS = XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+    private static final String BASE64_ENCODING = "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-soap-message-security-1.0#Base64Binary";
+    private static final String X509_V3_TYPE = "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-x509-token-profile-1.0#X509v3";
+
+    /**
+     * The JCA names of the supported XML signature and digest algorithms. Signature algorithms with a different
+     * signature value format in XML (DSA, ECDSA) are left to the WSS4J signer
+     */
+    private static final Map<String, String> signatureAlgorithms = Map.of(
+            WSConstants.RSA, "SHA1withRSA",
+            "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256", "SHA256withRSA"
+    );
+    private static final Map<String, String> digestAlgorithms = Map.of(
+            WSConstants.SHA1, "SHA-1",
+            WSConstants.SHA256, "SHA-256"
+    );
+
+    /**
+     * Time-to-live of the Timestamp, as the WSS4J default
+     */
+    static final long timeToLiveSeconds = 300;
+    private static final DateTimeFormatter timestampFormat =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    /**
+     * The message signed at start-up, to check the prepared canonical forms against the canonicalizer
+     */
+    private static final String SELF_CHECK_MESSAGE = """
+            <?xml version="1.0" encoding="UTF-8"?>
+            <soapenv:Envelope xmlns:soapenv="http://schemas.xmlsoap.org/soap/envelope/" xmlns:chk="urn:nl:odido:eai:wss:self-check">
+              <soapenv:Header><chk:context>self-check</chk:context></soapenv:Header>
+              <soapenv:Body>
+                <chk:selfCheck attribute="a &amp; b">text &lt; &#13; &#x9;</chk:selfCheck>
+              </soapenv:Body>
+            </soapenv:Envelope>
+            """;
+
+    private static final Logger logger = Logger.getLogger(TemplateSigner.class.getName());
+
+    /**
+     * The canonical forms that a message was signed with
+     * @param timestamp Canonical Timestamp
+     * @param bodyDigest Digest of the canonical Body
+     * @param signedInfo Canonical SignedInfo
+     */
+    record Canonical(byte[] timestamp, byte[] bodyDigest, byte[] signedInfo) {}
+
+    private final SigningContext signingContext;
+    private final String signatureAlgorithm;
+    private final String digestAlgorithm;
+
+    // the canonical SignedInfo, around the reference ids and digest values
+    private final String signedInfoStart;
+    private final String referenceStart;
+    private final String referenceMiddle;
+    private final String referenceEnd;
+    private final String signedInfoEnd;
+
+    private static final String TIMESTAMP_START = "<wsu:Timestamp xmlns:wsu=\"" + WSU_NS + "\" wsu:Id=\"";
+    private static final String TIMESTAMP_CREATED = "\"><wsu:Created>";
+    private static final String TIMESTAMP_EXPIRES = "</wsu:Created><wsu:Expires>";
+    private static final String TIMESTAMP_END = "</wsu:Expires></wsu:Timestamp>";
+
+    private TemplateSigner(SigningContext signingContext) {
+        this.signingContext = signingContext;
+        this.signatureAlgorithm = signatureAlgorithms.get(signingContext.getSignatureAlgorithm());
+        this.digestAlgorithm = digestAlgorithms.get(signingContext.getDigestAlgorithm());
+
+        // exclusive canonicalization: only the ds namespace is used, and empty elements have an end tag
+        String c14n = signingContext.getCanonicalizationAlgorithm();
+        this.signedInfoStart = "<ds:SignedInfo xmlns:ds=\"" + DS_NS + "\">"
+                + "<ds:CanonicalizationMethod Algorithm=\"" + c14n + "\"></ds:CanonicalizationMethod>"
+                + "<ds:SignatureMethod Algorithm=\"" + signingContext.getSignatureAlgorithm() + "\"></ds:SignatureMethod>";
+        this.referenceStart = "<ds:Reference URI=\"#";
+        this.referenceMiddle = "\"><ds:Transforms><ds:Transform Algorithm=\"" + c14n + "\"></ds:Transform></ds:Transforms>"
+                + "<ds:DigestMethod Algorithm=\"" + signingContext.getDigestAlgorithm() + "\"></ds:DigestMethod><ds:DigestValue>";
+        this.referenceEnd = "</ds:DigestValue></ds:Reference>";
+        this.signedInfoEnd = "</ds:SignedInfo>";
+    }
+
+    /**
+     * Prepare the template signer of a signing context, and check it with a test message
+     * @param signingContext The signing key, certificate and algorithms
+     * @return The template signer, or null if the algorithms or signed parts of the context are not supported,
+     * or the check failed
+     */
+    public static TemplateSigner create(SigningContext signingContext) {
+        if (!signatureAlgorithms.containsKey(signingContext.getSignatureAlgorithm())
+                || !digestAlgorithms.containsKey(signingContext.getDigestAlgorithm())
+                || !WSConstants.C14N_EXCL_OMIT_COMMENTS.equals(signingContext.getCanonicalizationAlgorithm())
+                || !SigningContext.defaultSignedParts.equals(signingContext.getSignedParts())) {
+            logger.info("Template signing is not supported for algorithm " + signingContext.getSignatureAlgorithm());
+            return null;
+        }
+        Init.init();
+        TemplateSigner signer = new TemplateSigner(signingContext);
+        return signer.selfCheck() ? signer : null;
+    }
+
+    /**
+     * Sign a message in place, if it has the supported shape
+     * @param doc SOAP message
+     * @return True if the message was signed; false if it was not changed, and must be signed by the WSS4J signer
+     */
+    public boolean sign(Document doc) throws WSSecurityException {
+        return signMessage(doc) != null;
+    }
+
+    Canonical signMessage(Document doc) throws WSSecurityException {
+        Element envelope = doc.getDocumentElement();
+        if (envelope == null || !isElement(envelope, SOAP_NS, "Envelope")) {
+            return null;
+        }
+        String soapPrefix = envelope.getPrefix();
+        if (soapPrefix == null || soapPrefix.isEmpty()) {
+            return null;
+        }
+        Element header = null;
+        Element body = null;
+        for (Node child = envelope.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            if (header == null && body == null && isElement(child, SOAP_NS, "Header")) {
+                header = (Element) child;
+            } else if (body == null && isElement(child, SOAP_NS, "Body")) {
+                body = (Element) child;
+            } else {
+                return null;
+            }
+        }
+        if (body == null || body.hasAttributeNS(WSU_NS, "Id") || hasSecurityHeader(header)) {
+            return null;
+        }
+        String wsuBinding = body.lookupNamespaceURI(WSConstants.WSU_PREFIX);
+        if ((wsuBinding != null && !WSU_NS.equals(wsuBinding))
+                || (header != null && !SOAP_NS.equals(header.lookupNamespaceURI(soapPrefix)))) {
+            return null;
+        }
+
+        try {
+            String id = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+            String timestampId = "TS-" + id;
+            String bodyId = "id-" + id;
+            String tokenId = "X509-" + id;
+
+            if (wsuBinding == null) {
+                body.setAttributeNS(XMLNS_NS, "xmlns:" + WSConstants.WSU_PREFIX, WSU_NS);
+            }
+            body.setAttributeNS(WSU_NS, WSConstants.WSU_PREFIX + ":Id", bodyId);
+            byte[] bodyDigest = digest(body);
+
+            Instant now = Instant.now();
+            String created = timestampFormat.format(now);
+            String expires = timestampFormat.format(now.plusSeconds(timeToLiveSeconds));
+            byte[] timestamp = (TIMESTAMP_START + timestampId + TIMESTAMP_CREATED + created + TIMESTAMP_EXPIRES
+                    + expires + TIMESTAMP_END).getBytes(StandardCharsets.UTF_8);
+
+            Base64.Encoder base64 = Base64.getEncoder();
+            String timestampDigestValue = base64.encodeToString(MessageDigest.getInstance(digestAlgorithm).digest(timestamp));
+            String bodyDigestValue = base64.encodeToString(bodyDigest);
+            byte[] signedInfo = (signedInfoStart
+                    + referenceStart + timestampId + referenceMiddle + timestampDigestValue + referenceEnd
+                    + referenceStart + bodyId + referenceMiddle + bodyDigestValue + referenceEnd
+                    + signedInfoEnd).getBytes(StandardCharsets.UTF_8);
+            Signature signature = Signature.getInstance(signatureAlgorithm);
+            signature.initSign(signingContext.getPrivateKey());
+            signature.update(signedInfo);
+            String signatureValue = base64.encodeToString(signature.sign());
+
+            Element security = doc.createElementNS(WSSE_NS, "wsse:Security");
+            security.setAttributeNS(XMLNS_NS, "xmlns:wsse", WSSE_NS);
+            security.setAttributeNS(XMLNS_NS, "xmlns:" + WSConstants.WSU_PREFIX, WSU_NS);
+            security.setAttributeNS(SOAP_NS, soapPrefix + ":mustUnderstand", "1");
+
+            Element token = append(security, WSSE_NS, "wsse:BinarySecurityToken", signingContext.getBinarySecurityTokenValue());
+            token.setAttributeNS(null, "EncodingType", BASE64_ENCODING);
+            token.setAttributeNS(null, "ValueType", X509_V3_TYPE);
+            token.setAttributeNS(WSU_NS, WSConstants.WSU_PREFIX + ":Id", tokenId);
+
+            Element signatureElement = append(security, DS_NS, "ds:Signature", null);
+            signatureElement.setAttributeNS(XMLNS_NS, "xmlns:ds", DS_NS);
+            signatureElement.setAttributeNS(null, "Id", "SIG-" + id);
+            Element signedInfoElement = append(signatureElement, DS_NS, "ds:SignedInfo", null);
+            append(signedInfoElement, DS_NS, "ds:CanonicalizationMethod", null)
+                    .setAttributeNS(null, "Algorithm", signingContext.getCanonicalizationAlgorithm());
+            append(signedInfoElement, DS_NS, "ds:SignatureMethod", null)
+                    .setAttributeNS(null, "Algorithm", signingContext.getSignatureAlgorithm());
+            appendReference(signedInfoElement, timestampId, timestampDigestValue);
+            appendReference(signedInfoElement, bodyId, bodyDigestValue);
+            append(signatureElement, DS_NS, "ds:SignatureValue", signatureValue);
+            Element keyInfo = append(signatureElement, DS_NS, "ds:KeyInfo", null);
+            keyInfo.setAttributeNS(null, "Id", "KI-" + id);
+            Element tokenReference = append(keyInfo, WSSE_NS, "wsse:SecurityTokenReference", null);
+            tokenReference.setAttributeNS(WSU_NS, WSConstants.WSU_PREFIX + ":Id", "STR-" + id);
+            Element reference = append(tokenReference, WSSE_NS, "wsse:Reference", null);
+            reference.setAttributeNS(null, "URI", "#" + tokenId);
+            reference.setAttributeNS(null, "ValueType", X509_V3_TYPE);
+
+            Element timestampElement = append(security, WSU_NS, "wsu:Timestamp", null);
+            timestampElement.setAttributeNS(WSU_NS, WSConstants.WSU_PREFIX + ":Id", timestampId);
+            append(timestampElement, WSU_NS, "wsu:Created", created);
+            append(timestampElement, WSU_NS, "wsu:Expires", expires);
+
+            if (header == null) {
+                header = doc.createElementNS(SOAP_NS, soapPrefix + ":Header");
+                envelope.insertBefore(header, body);
+            }
+            header.insertBefore(security, header.getFirstChild());
+            return new Canonical(timestamp, bodyDigest, signedInfo);
+        } catch (GeneralSecurityException | XMLSecurityException e) {
+            throw new WSSecurityException(WSSecurityException.ErrorCode.FAILURE, e);
+        }
+    }
+
+    private void appendReference(Element signedInfo, String id, String digestValue) {
+        Element reference = append(signedInfo, DS_NS, "ds:Reference", null);
+        reference.setAttributeNS(null, "URI", "#" + id);
+        Element transforms = append(reference, DS_NS, "ds:Transforms", null);
+        append(transforms, DS_NS, "ds:Transform", null)
+                .setAttributeNS(null, "Algorithm", signingContext.getCanonicalizationAlgorithm());
+        append(reference, DS_NS, "ds:DigestMethod", null)
+                .setAttributeNS(null, "Algorithm", signingContext.getDigestAlgorithm());
+        append(reference, DS_NS, "ds:DigestValue", digestValue);
+    }
+
+    private static Element append(Element parent, String namespace, String qualifiedName, String text) {
+        Element element = parent.getOwnerDocument().createElementNS(namespace, qualifiedName);
+        if (text != null) {
+            element.appendChild(parent.getOwnerDocument().createTextNode(text));
+        }
+        parent.appendChild(element);
+        return element;
+    }
+
+    private byte[] digest(Node node) throws GeneralSecurityException, XMLSecurityException {
+        MessageDigest digest = MessageDigest.getInstance(digestAlgorithm);
+        canonicalize(node, new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+        return digest.digest();
+    }
+
+    private static void canonicalize(Node node, OutputStream out) throws XMLSecurityException {
+        Canonicalizer.getInstance(Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS).canonicalizeSubtree(node, out);
+    }
+
+    private static boolean hasSecurityHeader(Element header) {
+        if (header != null) {
+            for (Node child = header.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (isElement(child, WSSE_NS, "Security")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isElement(Node node, String namespace, String localName) {
+        return node.getNodeType() == Node.ELEMENT_NODE
+                && localName.equals(node.getLocalName())
+                && namespace.equals(node.getNamespaceURI());
+    }
+
+    /**
+     * Sign a test message, and compare the prepared canonical forms with the output of the canonicalizer
+     * on the rendered and parsed message, as the verifier sees it
+     * @return True if they are the same
+     */
+    private boolean selfCheck() {
+        try {
+            Document doc = XmlTools.parseXML(SELF_CHECK_MESSAGE.getBytes(StandardCharsets.UTF_8));
+            Canonical expected = signMessage(doc);
+            Document parsed = XmlTools.parseXML(XmlTools.renderDOM(doc, false).getBytes(StandardCharsets.UTF_8));
+
+            ByteArrayOutputStream timestamp = new ByteArrayOutputStream();
+            canonicalize(parsed.getElementsByTagNameNS(WSU_NS, "Timestamp").item(0), timestamp);
+            ByteArrayOutputStream signedInfo = new ByteArrayOutputStream();
+            canonicalize(parsed.getElementsByTagNameNS(DS_NS, "SignedInfo").item(0), signedInfo);
+            byte[] bodyDigest = digest(parsed.getElementsByTagNameNS(SOAP_NS, "Body").item(0));
+
+            if (expected != null
+                    && Arrays.equals(expected.timestamp(), timestamp.toByteArray())
+                    && Arrays.equals(expected.signedInfo(), signedInfo.toByteArray())
+                    && MessageDigest.isEqual(expected.bodyDigest(), bodyDigest)) {
+                return true;
+            }
+            logger.warning("Template signing disabled: the canonical forms differ from the canonicalizer");
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Template signing disabled: the test message could not be signed", e);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,80 @@
+package nl.odido.eai.wssclient;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.eclipse.jetty.util.VirtualThreads;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+
+/**
+ * Thread pools of the HTTP server and client
+ */
+public class ThreadPools {
+
+    static Logger log = Logger.getLogger(ThreadPools.class.getName());
+
+    /**
+     * How requests and client callbacks are executed
+     */
+    public enum Mode {
+        /**
+         * A bounded pool of platform threads
+         */
+        PLATFORM,
+        /**
+         * Virtual threads (Java 21+). The platform pool only runs the selectors and acceptors,
+         * the request handling and client callbacks run on a new virtual thread each
+         */
+        VIRTUAL
+    }
+
+    /**
+     * Maximum number of tasks waiting for a platform thread. Overload is handled by the {@link AdmissionControl}
+     * of the proxy, this queue only absorbs bursts, so that connections are not dropped by rejected tasks
+     */
+    static final int MAX_QUEUED_TASKS = 4096;
+
+    private ThreadPools() {
+    }
+
+    /**
+     * Create a Jetty thread pool
+     * @param mode Platform or virtual threads. Falls back to platform threads if the Java runtime has no virtual threads
+     * @param idleTimeoutSeconds Time before idle platform threads are removed
+     * @return A new thread pool
+     */
+    public static ExecutorThreadPool newThreadPool(Mode mode, long idleTimeoutSeconds) {
+        boolean virtual = mode == Mode.VIRTUAL && VirtualThreads.areSupported();
+        // queue tasks instead of rejecting them; the platform threads of the virtual mode never block
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+                8,
+                8,
+                idleTimeoutSeconds,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(virtual ? Integer.MAX_VALUE : MAX_QUEUED_TASKS));
+
+        threadPoolExecutor.allowCoreThreadTimeOut(!virtual);
+        threadPoolExecutor.prestartAllCoreThreads();
+        ExecutorThreadPool threadPool = new ExecutorThreadPool(threadPoolExecutor);
+
+        if (virtual) {
+            threadPool.setVirtualThreadsExecutor(VirtualThreads.getDefaultVirtualThreadsExecutor());
+        } else if (mode == Mode.VIRTUAL) {
+            log.warning("virtual threads are not supported by this Java runtime, using platform threads");
+        }
+        return threadPool;
+    }
+
+    /**
+     * @param threadPool A thread pool created by {@link #newThreadPool(Mode, long)}
+     * @return The executor to run (blocking) application tasks on: the virtual thread executor in virtual mode,
+     * otherwise the thread pool itself
+     */
+    public static Executor taskExecutor(Executor threadPool) {
+        Executor virtual = VirtualThreads.getVirtualThreadsExecutor(threadPool);
+        return virtual != null ? virtual : threadPool;
+    }
+}
@@ -0,0 +1,104 @@
+package nl.odido.eai.wssclient;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small, bounded cache with time-to-live. Lookups are lock-free;
+ * when the cache overflows, expired entries and then the oldest entries are evicted.
+ * Intended for a low number of distinct keys (e.g. the signer certificates of the back-end)
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class TtlCache<K, V> {
+
+    /**
+     * Cache usage counters
+     * @param hits Number of lookups that found a valid entry
+     * @param misses Number of lookups that did not
+     * @param size Number of entries in the cache
+     */
+    public record Stats(long hits, long misses, int size) {}
+
+    private record Entry<V>(V value, long createdAt, long expiresAt) {}
+
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final long ttlMillis;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a new cache
+     * @param maxSize Maximum number of entries
+     * @param ttlMillis Maximum time an entry is kept, in milliseconds
+     */
+    public TtlCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @param key The key
+     * @return The cached value, or null if not found or expired
+     */
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.expiresAt() > System.currentTimeMillis()) {
+            hits.increment();
+            return entry.value();
+        }
+        if (entry != null) {
+            entries.remove(key, entry);
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Store a value with the default time-to-live
+     */
+    public void put(K key, V value) {
+        put(key, value, Long.MAX_VALUE);
+    }
+
+    /**
+     * Store a value
+     * @param key The key
+     * @param value The value
+     * @param notAfter Absolute time (epoch millis) after which the value must not be used, even if the time-to-live would allow it
+     */
+    public void put(K key, V value, long notAfter) {
+        long now = System.currentTimeMillis();
+        entries.put(key, new Entry<>(value, now, Math.min(now + ttlMillis, notAfter)));
+        if (entries.size() > maxSize) {
+            evict(now);
+        }
+    }
+
+    private void evict(long now) {
+        entries.entrySet().removeIf(e -> e.getValue().expiresAt() <= now);
+        int excess = entries.size() - maxSize;
+        if (excess > 0) {
+            entries.entrySet().stream()
+                    .sorted(Comparator.comparingLong(e -> e.getValue().createdAt()))
+                    .limit(excess)
+                    .map(Map.Entry::getKey)
+                    .toList()
+                    .forEach(entries::remove);
+        }
+    }
+
+    /**
+     * Remove all entries
+     */
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    public Stats getStats() {
+        return new Stats(hits.sum(), misses.sum(), entries.size());
+    }
+}
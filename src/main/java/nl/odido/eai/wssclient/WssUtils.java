@@ -1,9 +1,16 @@
 package nl.odido.eai.wssclient;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -11,15 +18,16 @@ import java.util.stream.Collectors;
 import jakarta.annotation.Nonnull;
 
 import javax.security.auth.x500.X500Principal;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.TransformerException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 
-import org.apache.wss4j.common.WSEncryptionPart;
 import org.apache.wss4j.common.bsp.BSPRule;
 import org.apache.wss4j.common.crypto.Crypto;
 import org.apache.wss4j.common.crypto.CryptoFactory;
+import org.apache.wss4j.common.crypto.Merlin;
 import org.apache.wss4j.common.ext.WSSecurityException;
 import org.apache.wss4j.dom.WSConstants;
 import org.apache.wss4j.dom.engine.WSSConfig;
@@ -30,6 +38,12 @@ import org.apache.wss4j.dom.handler.WSHandlerResult;
 import org.apache.wss4j.dom.message.WSSecHeader;
 import org.apache.wss4j.dom.message.WSSecSignature;
 import org.apache.wss4j.dom.message.WSSecTimestamp;
+import org.apache.wss4j.stax.ext.WSSSecurityProperties;
+import org.apache.wss4j.stax.securityEvent.X509TokenSecurityEvent;
+import org.apache.wss4j.stax.setup.InboundWSSec;
+import org.apache.wss4j.stax.setup.OutboundWSSec;
+import org.apache.wss4j.stax.setup.WSSec;
+import org.apache.xml.security.stax.securityEvent.SignatureValueSecurityEvent;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
@@ -45,23 +59,45 @@ public class WssUtils {
             "2.5.4.15", "businessCategory"
     );
 
-    private final String signAlias;
-    private final String signPassword;
-    private final Crypto signer;
-    private final Crypto verifier;
+    private final SigningContext signingContext;
+    private final TemplateSigner templateSigner;
+    private volatile boolean templateSigning = true;
+    private final OutboundWSSec streamingSigner;
+    private volatile long streamingThreshold = defaultStreamingThreshold;
+    private final ObjectPool<Verifier> verifiers;
     private final List<BSPRule> ignoredBSPRules;
-    private final WSSecurityEngine securityEngine;
+    private final TtlCache<String, X509Certificate> certificateCache;
+    private final TtlCache<String, CachingMerlin.TrustResult> trustCache;
     private static boolean engineInitd = false;
 
+    /**
+     * Size and time-to-live of the caches of signer certificates and trust validation results
+     */
+    static final int certificateCacheSize = 64;
+    static final long certificateCacheTtlMillis = 10 * 60 * 1000L;
+
+    /**
+     * Messages larger than this (in bytes) are signed with the streaming signer instead of a DOM
+     */
+    static final long defaultStreamingThreshold = 1024 * 1024L;
+
     private static final Logger logger = Logger.getLogger(WssUtils.class.getName());
 
-    private WssUtils(String signAlias, String signPassword, Crypto signer, Crypto verifier, List<BSPRule> ignoredBSPRules, WSSecurityEngine securityEngine) {
-        this.signAlias = signAlias;
-        this.signPassword = signPassword;
-        this.signer = signer;
-        this.verifier = verifier;
+    /**
+     * A security engine with its own view on the shared truststore
+     */
+    private record Verifier(WSSecurityEngine securityEngine, Crypto crypto) {}
+
+    private WssUtils(SigningContext signingContext, ObjectPool<Verifier> verifiers, List<BSPRule> ignoredBSPRules,
+                     TtlCache<String, X509Certificate> certificateCache, TtlCache<String, CachingMerlin.TrustResult> trustCache) throws WSSecurityException {
+        this.signingContext = signingContext;
+        this.templateSigner = TemplateSigner.create(signingContext);
+        // validates the configuration once; the outbound stack only reads it, and creates a new processor chain per message
+        this.streamingSigner = WSSec.getOutboundWSSec(signingContext.newStreamingProperties());
+        this.verifiers = verifiers;
         this.ignoredBSPRules = ignoredBSPRules;
-        this.securityEngine = securityEngine;
+        this.certificateCache = certificateCache;
+        this.trustCache = trustCache;
     }
 
     /**
@@ -81,14 +117,40 @@ public class WssUtils {
                          @Nonnull String truststoreFile,
                          @Nonnull String truststorePassword,
                          @Nonnull List<String> ignoredBSPRuleNames) throws WSSecurityException {
+        return newWssUtils(keystoreFile, keystorePassword, keystoreAlias, truststoreFile, truststorePassword,
+                ignoredBSPRuleNames, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a new WssUtils instance, to sign SOAP messages and verify signatures
+     * @param keystoreFile The keystore file, where the signing key-certificate pair is
+     * @param keystorePassword Password of the keystore file. Key password must be the same
+     * @param keystoreAlias Alias of the signing key
+     * @param truststoreFile The truststore file, where the trusted certificates are
+     * @param truststorePassword Password of the truststore file
+     * @param ignoredBSPRuleNames List of BSP rules that can be ignored at the signature validation
+     * @param verifierPoolSize Number of security engines, i.e. the number of signatures that can be verified in parallel
+     * @return A new WssUtils instance
+     * @throws WSSecurityException
+     */
+    public static WssUtils newWssUtils(@Nonnull String keystoreFile,
+                         @Nonnull String keystorePassword,
+                         @Nonnull String keystoreAlias,
+                         @Nonnull String truststoreFile,
+                         @Nonnull String truststorePassword,
+                         @Nonnull List<String> ignoredBSPRuleNames,
+                         int verifierPoolSize) throws WSSecurityException {
+
+        // the caches belong to this truststore: a new WssUtils instance (e.g. after a truststore change) starts empty
+        TtlCache<String, X509Certificate> certificateCache = new TtlCache<>(certificateCacheSize, certificateCacheTtlMillis);
+        TtlCache<String, CachingMerlin.TrustResult> trustCache = new TtlCache<>(certificateCacheSize, certificateCacheTtlMillis);
 
         WssUtils wss = new WssUtils(
-                keystoreAlias,
-                keystorePassword,
-                createCryptoSigner(keystoreFile, keystorePassword, keystoreAlias),
-                createCryptoVerifier(truststoreFile, truststorePassword),
+                SigningContext.load(createCryptoSigner(keystoreFile, keystorePassword, keystoreAlias), keystoreAlias, keystorePassword),
+                createVerifierPool(truststoreFile, truststorePassword, verifierPoolSize, certificateCache, trustCache),
                 createIgnoredBSPRulesList(ignoredBSPRuleNames),
-                new WSSecurityEngine());
+                certificateCache,
+                trustCache);
 
         if (!engineInitd) {
             WSSConfig.init();
@@ -124,14 +186,108 @@ public class WssUtils {
         return CryptoFactory.getInstance(props);
     }
 
-    private static Crypto createCryptoVerifier(String truststoreFile, String truststorePassword) throws WSSecurityException {
+    private static ObjectPool<Verifier> createVerifierPool(String truststoreFile, String truststorePassword, int poolSize,
+                                                           TtlCache<String, X509Certificate> certificateCache,
+                                                           TtlCache<String, CachingMerlin.TrustResult> trustCache) throws WSSecurityException {
+        // The truststore is loaded once; the pooled Merlin instances only read it
+        Merlin first = createCryptoVerifier(truststoreFile, truststorePassword, certificateCache, trustCache);
+        KeyStore truststore = first.getKeyStore();
+        List<Verifier> verifiers = new ArrayList<>(poolSize);
+        verifiers.add(new Verifier(new WSSecurityEngine(), first));
+        for (int i = 1; i < poolSize; i++) {
+            Merlin crypto = new CachingMerlin(truststore, certificateCache, trustCache);
+            verifiers.add(new Verifier(new WSSecurityEngine(), crypto));
+        }
+        return new ObjectPool<>(verifiers);
+    }
+
+    private static Merlin createCryptoVerifier(String truststoreFile, String truststorePassword,
+                                               TtlCache<String, X509Certificate> certificateCache,
+                                               TtlCache<String, CachingMerlin.TrustResult> trustCache) throws WSSecurityException {
         Properties props = new Properties();
         props.setProperty("org.apache.wss4j.crypto.provider", "org.apache.wss4j.common.crypto.Merlin");
         props.setProperty("org.apache.wss4j.crypto.merlin.keystore.type", "jks");
         props.setProperty("org.apache.wss4j.crypto.merlin.keystore.file", truststoreFile);
         props.setProperty("org.apache.wss4j.crypto.merlin.keystore.password", truststorePassword);
 
-        return CryptoFactory.getInstance(props);
+        try {
+            return new CachingMerlin(props, certificateCache, trustCache);
+        } catch (IOException e) {
+            throw new WSSecurityException(WSSecurityException.ErrorCode.FAILURE, e);
+        }
+    }
+
+    /**
+     * @param streamingThreshold Messages larger than this number of bytes are signed with the streaming signer
+     */
+    public void setStreamingThreshold(long streamingThreshold) {
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    public long getStreamingThreshold() {
+        return streamingThreshold;
+    }
+
+    /**
+     * @param templateSigning True to sign messages of the common shape with the {@link TemplateSigner},
+     *                        false to sign all messages with the WSS4J signer
+     */
+    public void setTemplateSigning(boolean templateSigning) {
+        this.templateSigning = templateSigning;
+    }
+
+    /**
+     * @return True if messages of the common shape are signed with the {@link TemplateSigner}
+     */
+    public boolean isTemplateSigning() {
+        return templateSigning && templateSigner != null;
+    }
+
+    /**
+     * @return Hit/miss counters of the cache of parsed signer certificates
+     */
+    public TtlCache.Stats getCertificateCacheStats() {
+        return certificateCache.getStats();
+    }
+
+    /**
+     * @return Hit/miss counters of the cache of certificate trust validation results
+     */
+    public TtlCache.Stats getTrustCacheStats() {
+        return trustCache.getStats();
+    }
+
+    /**
+     * The message signed and verified by {@link #warmUp()}
+     */
+    private static final String WARM_UP_MESSAGE = """
+            <?xml version="1.0" encoding="UTF-8"?>
+            <soapenv:Envelope xmlns:soapenv="http://schemas.xmlsoap.org/soap/envelope/">
+              <soapenv:Header/>
+              <soapenv:Body>
+                <warmUp xmlns="urn:nl:odido:eai:wss:warm-up">warm-up</warmUp>
+              </soapenv:Body>
+            </soapenv:Envelope>
+            """;
+
+    /**
+     * Sign and verify a synthetic message with the DOM and the streaming implementations, on the current thread,
+     * so that the lazily initialised parsers, signers and verifiers, and the per-thread parser state,
+     * are set up before the first real message. Verification failures are ignored:
+     * the own signing certificate is not necessarily in the truststore
+     */
+    public void warmUp() throws IOException, SAXException, WSSecurityException, TransformerException {
+        byte[] message = WARM_UP_MESSAGE.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream signed = new ByteArrayOutputStream(4096);
+        signWSS(new ByteArrayInputStream(message), signed);
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream(4096);
+        signWSSStreaming(new ByteArrayInputStream(message), streamed);
+        try {
+            verifyWSS(signed.toByteArray());
+            verifyWSSStreaming(new ByteArrayInputStream(streamed.toByteArray()));
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Warm-up message not verified", e);
+        }
     }
 
     /**
@@ -145,24 +301,115 @@ public class WssUtils {
      * @throws IllegalArgumentException
      */
     public WSHandlerResult verifyWSS(String message) throws SAXException, IOException, WSSecurityException, XPathExpressionException, IllegalArgumentException {
-        Document doc = XmlTools.parseXML(message);
-        XPath xpath = XmlTools.newXPath();
-        boolean fault = (xpath.evaluate("/SOAP-ENV:Envelope/SOAP-ENV:Body/SOAP-ENV:Fault", doc, XPathConstants.NODE) != null);
-        if (!fault) {
-            synchronized (verifier) {
+        return verifyWSS(XmlTools.parseXML(message));
+    }
+
+    /**
+     * Verify signature of a SOAP message, parsed from bytes without decoding to a String
+     * @param message Signed SOAP message
+     * @return Verification result, or null if the message is a SOAP Fault
+     */
+    public WSHandlerResult verifyWSS(byte[] message) throws SAXException, IOException, WSSecurityException, XPathExpressionException, IllegalArgumentException {
+        return verifyWSS(XmlTools.parseXML(message));
+    }
+
+    /**
+     * Verify signature of a SOAP message read from a stream
+     * @param message Signed SOAP message
+     * @return Verification result, or null if the message is a SOAP Fault
+     */
+    public WSHandlerResult verifyWSS(InputStream message) throws SAXException, IOException, WSSecurityException, XPathExpressionException, IllegalArgumentException {
+        return verifyWSS(XmlTools.parseXML(message));
+    }
+
+    /**
+     * Verify signature of a SOAP message with the streaming (StAX) security stack, without building a DOM.
+     * The memory used does not depend on the message size, so this is meant for large messages
+     * @param message Signed SOAP message. It is read to the end
+     * @return Verification result with the signer certificates, or null if the message is an unsigned SOAP Fault
+     * @throws WSSecurityException If the signature, the timestamp or the trust of the signer certificate is invalid
+     * @throws IllegalArgumentException If the message is not signed
+     */
+    public WSHandlerResult verifyWSSStreaming(InputStream message) throws WSSecurityException, IllegalArgumentException {
+        return verifiers.apply(verifier -> {
+            WSSSecurityProperties properties = new WSSSecurityProperties();
+            properties.setSignatureVerificationCrypto(verifier.crypto());
+            ignoredBSPRules.forEach(properties::addIgnoreBSPRule);
+            InboundWSSec inbound = WSSec.getInboundWSSec(properties);
+
+            List<WSSecurityEngineResult> results = new ArrayList<>();
+            AtomicBoolean signed = new AtomicBoolean(false);
+            XMLStreamReader reader = null;
+            try {
+                reader = inbound.processInMessage(XmlTools.newXMLStreamReader(message), null, event -> {
+                    if (event instanceof SignatureValueSecurityEvent) {
+                        signed.set(true);
+                    } else if (event instanceof X509TokenSecurityEvent tokenEvent) {
+                        X509Certificate[] certificates = tokenEvent.getSecurityToken().getX509Certificates();
+                        if (certificates != null && certificates.length > 0) {
+                            results.add(new WSSecurityEngineResult(WSConstants.SIGN, certificates[0].getSubjectX500Principal(),
+                                    certificates, new ArrayList<>(), null));
+                        }
+                    }
+                });
+                // the signature is verified while the signed elements are read
+                boolean fault = false;
+                int depth = 0;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamReader.START_ELEMENT) {
+                        depth++;
+                        fault |= depth == 3 && "Fault".equals(reader.getLocalName())
+                                && WSConstants.URI_SOAP11_ENV.equals(reader.getNamespaceURI());
+                    } else if (event == XMLStreamReader.END_ELEMENT) {
+                        depth--;
+                    }
+                }
+                if (!signed.get()) {
+                    if (fault) {
+                        return null;
+                    }
+                    throw new IllegalArgumentException("Message is not signed!");
+                }
+                return new WSHandlerResult("", results, Collections.emptyMap());
+            } catch (XMLStreamException e) {
+                if (e.getCause() instanceof WSSecurityException wsse) {
+                    throw wsse;
+                }
+                throw new WSSecurityException(WSSecurityException.ErrorCode.FAILED_CHECK, e);
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (XMLStreamException e) {
+                        logger.log(Level.FINE, "Error closing the XML reader", e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Verify the signature of a parsed SOAP message
+     * @param doc SOAP message. Modified by the verification
+     * @return The verification result, or null if the message is a SOAP Fault
+     */
+    public WSHandlerResult verifyWSS(Document doc) throws WSSecurityException, IllegalArgumentException {
+        if (!XmlTools.isSoapFault(doc)) {
+            WSHandlerResult result = verifiers.apply(verifier -> {
                 RequestData data = new RequestData();
                 data.setActor("");
-                data.setWssConfig(securityEngine.getWssConfig());
-                data.setDecCrypto(verifier);
-                data.setSigVerCrypto(verifier);
+                data.setWssConfig(verifier.securityEngine().getWssConfig());
+                data.setDecCrypto(verifier.crypto());
+                data.setSigVerCrypto(verifier.crypto());
                 data.setCallbackHandler(null);
                 data.setIgnoredBSPRules(ignoredBSPRules);
-                WSHandlerResult result = securityEngine.processSecurityHeader(doc, data);    // throws exception if fails
-                if (result == null) {
-                    throw new IllegalArgumentException("Message is not signed!");
-                }
-                return result;
+                return verifier.securityEngine().processSecurityHeader(doc, data);    // throws exception if fails
+            });
+            if (result == null) {
+                throw new IllegalArgumentException("Message is not signed!");
             }
+            return result;
         }
         return null;
     }
@@ -205,18 +452,88 @@ public class WssUtils {
      * @throws TransformerException
      */
     public String signWSS(String message) throws IOException, SAXException, WSSecurityException, TransformerException {
+        return XmlTools.renderDOM(signWSS(XmlTools.parseXML(message)), false);
+    }
 
-        Document doc = XmlTools.parseXML(message);
+    /**
+     * Sign a SOAP message without decoding it to a String
+     * @param message SOAP message as bytes (encoding detected by the parser)
+     * @return Signed SOAP message as UTF-8 bytes
+     */
+    public byte[] signWSS(byte[] message) throws IOException, SAXException, WSSecurityException, TransformerException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(message.length + 4096);
+        signWSS(new ByteArrayInputStream(message), message.length, out);
+        return out.toByteArray();
+    }
 
-        WSSecHeader secHeader = createSecurityHeader(doc);
-        WSSecSignature builder = createSignatureBuilder(secHeader, signAlias);
+    /**
+     * Sign a SOAP message read from a stream with the DOM signer, or with the streaming signer
+     * if the message is larger than the streaming threshold
+     * @param message SOAP message
+     * @param length Length of the message in bytes, or -1 if not known (signed with the DOM signer)
+     * @param signed Receives the signed SOAP message as UTF-8 bytes. It is not closed
+     */
+    public void signWSS(InputStream message, long length, OutputStream signed) throws IOException, SAXException, WSSecurityException, TransformerException {
+        if (length > streamingThreshold) {
+            signWSSStreaming(message, signed);
+        } else {
+            signWSS(message, signed);
+        }
+    }
+
+    /**
+     * Sign a SOAP message with the streaming (StAX) signer, without building a DOM.
+     * The signed message has the same timestamp, signed parts and algorithms as the DOM signer produces
+     * @param message SOAP message
+     * @param signed Receives the signed SOAP message as UTF-8 bytes. It is not closed
+     */
+    public void signWSSStreaming(InputStream message, OutputStream signed) throws IOException, WSSecurityException {
+        XMLStreamReader reader = null;
+        try {
+            reader = XmlTools.newXMLStreamReader(message);
+            XMLStreamWriter writer = streamingSigner.processOutMessage(signed, StandardCharsets.UTF_8.name(), new ArrayList<>());
+            XmlTools.copy(reader, writer);
+            writer.close();
+        } catch (XMLStreamException e) {
+            if (e.getCause() instanceof WSSecurityException wsse) {
+                throw wsse;
+            }
+            throw new WSSecurityException(WSSecurityException.ErrorCode.FAILURE, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    logger.log(Level.FINE, "Error closing the XML reader", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sign a SOAP message read from a stream, and write the signed message to another stream
+     * @param message SOAP message
+     * @param signed Receives the signed SOAP message as UTF-8 bytes. It is not closed
+     */
+    public void signWSS(InputStream message, OutputStream signed) throws IOException, SAXException, WSSecurityException, TransformerException {
+        XmlTools.renderDOM(signWSS(XmlTools.parseXML(message)), false, signed);
+    }
 
-        Document signedDoc;
-        synchronized (signer) {
-            signedDoc = builder.build(signer);
+    /**
+     * Sign a parsed SOAP message in place, with the {@link TemplateSigner} if the message has the common shape,
+     * otherwise with the WSS4J signer
+     * @param doc SOAP message
+     * @return The signed message (the same document)
+     */
+    public Document signWSS(Document doc) throws WSSecurityException {
+        if (isTemplateSigning() && templateSigner.sign(doc)) {
+            return doc;
         }
+        WSSecHeader secHeader = createSecurityHeader(doc);
+        WSSecSignature builder = signingContext.newSignatureBuilder(secHeader);
 
-        return XmlTools.renderDOM(signedDoc, false);
+        // the signing context is immutable, so messages are signed in parallel without locking
+        return builder.build(signingContext.getCrypto());
     }
 
     private WSSecHeader createSecurityHeader(Document doc) throws WSSecurityException {
@@ -228,16 +545,4 @@ public class WssUtils {
 
         return header;
     }
-
-    private WSSecSignature createSignatureBuilder(WSSecHeader secHeader, String keyAlias) {
-        WSSecSignature builder = new WSSecSignature(secHeader);
-        builder.setUserInfo(keyAlias, signPassword);
-        builder.setKeyIdentifierType(WSConstants.BST_DIRECT_REFERENCE);
-        builder.prependBSTElementToHeader();
-
-        builder.getParts().add(new WSEncryptionPart(WSConstants.TIMESTAMP_TOKEN_LN, WSConstants.WSU_NS, ""));
-        builder.getParts().add(new WSEncryptionPart(WSConstants.ELEM_BODY, WSConstants.URI_SOAP11_ENV, ""));
-
-        return builder;
-    }
 }
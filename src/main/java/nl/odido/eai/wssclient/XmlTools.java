@@ -1,19 +1,37 @@
 package nl.odido.eai.wssclient;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.*;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
+import org.eclipse.jetty.util.ByteArrayOutputStream2;
+import org.eclipse.jetty.util.VirtualThreads;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -27,63 +45,244 @@ public class XmlTools {
 
     private static final MyNamespaceContext myNamespaceCtx = new MyNamespaceContext();
 
-    private static final ThreadLocal<DocumentBuilder> localDocumentBuilder = new ThreadLocal<>() {
+    // thread-safe once configured
+    private static final XMLInputFactory xmlInputFactory = newXMLInputFactory();
 
-        @Override
-        public DocumentBuilder initialValue() {
-            try {
-                DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance(docBuilderFactoryClass, ClassLoader.getSystemClassLoader());
-                domFactory.setNamespaceAware(true);
-                return domFactory.newDocumentBuilder();
-            } catch (Exception e) {
-                throw new RuntimeException("Could not create DocumentBuilder", e);
+    private static XMLInputFactory newXMLInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * Holder of non thread-safe XML factories. Platform threads keep their own instance in a ThreadLocal.
+     * Virtual threads are short-lived and numerous, so they borrow instances from a shared queue
+     * instead of creating (expensive) new factories for every request
+     */
+    private static class Reusable<T> {
+        private final Supplier<T> factory;
+        private final Consumer<T> reset;
+        private final ThreadLocal<T> local;
+        private final Queue<T> shared = new ConcurrentLinkedQueue<>();
+
+        Reusable(Supplier<T> factory, Consumer<T> reset) {
+            this.factory = factory;
+            this.reset = reset;
+            this.local = ThreadLocal.withInitial(factory);
+        }
+
+        T local() {
+            T t = local.get();
+            reset.accept(t);
+            return t;
+        }
+
+        /**
+         * @return An instance for exclusive use by the current thread, until {@link #release(Object)}
+         */
+        T acquire() {
+            if (!VirtualThreads.isVirtualThread()) {
+                return local();
+            }
+            T t = shared.poll();
+            if (t == null) {
+                t = factory.get();
             }
+            reset.accept(t);
+            return t;
         }
 
-        @Override
-        public DocumentBuilder get() {
-            DocumentBuilder builder = super.get();
-            builder.reset();
-            return builder;
+        void release(T t) {
+            if (VirtualThreads.isVirtualThread()) {
+                shared.offer(t);
+            }
         }
-    };
+    }
 
-    private static final ThreadLocal<XPathFactory> localXPathFactory = ThreadLocal.withInitial(() -> {
+    private static final Reusable<DocumentBuilder> documentBuilders = new Reusable<>(() -> {
+        try {
+            DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance(docBuilderFactoryClass, ClassLoader.getSystemClassLoader());
+            domFactory.setNamespaceAware(true);
+            return domFactory.newDocumentBuilder();
+        } catch (Exception e) {
+            throw new RuntimeException("Could not create DocumentBuilder", e);
+        }
+    }, DocumentBuilder::reset);
+
+    private static final Reusable<XPathFactory> xpathFactories = new Reusable<>(() -> {
         try {
             return XPathFactory.newInstance(xpathFactoryUri, xpathFactoryClass, ClassLoader.getSystemClassLoader());
         } catch (Exception e) {
             throw new RuntimeException("Could not create XPathFactory", e);
         }
-    });
+    }, f -> {});
+
+    // separate instances for indented and plain output, so that the output properties are set only once
+    private static final Reusable<Transformer> transformers = new Reusable<>(() -> newTransformer(false), t -> {});
+    private static final Reusable<Transformer> indentingTransformers = new Reusable<>(() -> newTransformer(true), t -> {});
 
-    private static final ThreadLocal<Transformer> localTransformer = ThreadLocal.withInitial(() -> {
+    private static Transformer newTransformer(boolean indent) {
         try {
             Transformer transformer = TransformerFactory.newInstance(transformerFactoryClass, ClassLoader.getSystemClassLoader()).newTransformer();
             transformer.setOutputProperty(OutputKeys.METHOD, "xml");
             transformer.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
+            transformer.setOutputProperty(OutputKeys.INDENT, indent ? "yes" : "no");
             transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
             return transformer;
         } catch (Exception e) {
             throw new RuntimeException("Could not create Transformer", e);
         }
-    });
+    }
+
+    /**
+     * Writes a DOM as (non-indented) UTF-8 XML
+     */
+    @FunctionalInterface
+    public interface DomSerializer {
+        void serialize(Node node, OutputStream out) throws TransformerException;
+    }
+
+    /**
+     * The lightweight {@link DomWriter}. The default serializer
+     */
+    public static final DomSerializer directSerializer = (node, out) -> {
+        try {
+            DomWriter.write(node, out);
+        } catch (IOException e) {
+            throw new TransformerException(e);
+        }
+    };
+
+    /**
+     * A Saxon identity transformer
+     */
+    public static final DomSerializer transformerSerializer = (node, out) -> transform(transformers, node, new StreamResult(out));
+
+    private static volatile DomSerializer serializer = directSerializer;
+
+    /**
+     * @param domSerializer Serializer of the non-indented output of {@link #renderDOM(Node, boolean)}.
+     *                      Indented output is always written by Saxon
+     */
+    public static void setSerializer(DomSerializer domSerializer) {
+        serializer = domSerializer;
+    }
 
     public static DocumentBuilder getDocumentBuilder() {
-        return localDocumentBuilder.get();
+        return documentBuilders.local();
     }
 
     public static XPathFactory getXPathFactory() {
-        return localXPathFactory.get();
+        return xpathFactories.local();
+    }
+
+    public static XPath newXPath() {
+        XPathFactory factory = xpathFactories.acquire();
+        try {
+            XPath x = factory.newXPath();
+            x.setNamespaceContext(myNamespaceCtx);
+            return x;
+        } finally {
+            xpathFactories.release(factory);
+        }
     }
 
-    private static Transformer getTransformer() {
-        return localTransformer.get();
+    /**
+     * Compiled XPath expressions by expression text. Compiled expressions are not thread-safe,
+     * so each expression has its own reusable instances, like the factories
+     */
+    private static final Map<String, Reusable<XPathExpression>> compiledXPaths = new ConcurrentHashMap<>();
+
+    private static Reusable<XPathExpression> compiledXPath(String expression) {
+        return compiledXPaths.computeIfAbsent(expression, e -> new Reusable<>(() -> {
+            try {
+                return newXPath().compile(e);
+            } catch (XPathExpressionException xpe) {
+                throw new IllegalArgumentException("Invalid XPath expression: " + e, xpe);
+            }
+        }, x -> {}));
     }
 
-    public static XPath newXPath() {
-        XPath x = getXPathFactory().newXPath();
-        x.setNamespaceContext(myNamespaceCtx);
-        return x;
+    /**
+     * Evaluate an XPath expression, compiled once and reused across calls.
+     * Prefixes are resolved with {@link MyNamespaceContext}
+     * @param expression The XPath expression. Use a fixed set of expressions: the compiled expressions are kept forever
+     * @param node The context node
+     * @param returnType One of the {@link javax.xml.xpath.XPathConstants} types
+     * @return Result of the evaluation
+     * @throws XPathExpressionException If the evaluation fails
+     * @throws IllegalArgumentException If the expression does not compile
+     */
+    public static Object evaluateXPath(String expression, Node node, QName returnType) throws XPathExpressionException {
+        Reusable<XPathExpression> reusable = compiledXPath(expression);
+        XPathExpression compiled = reusable.acquire();
+        try {
+            return compiled.evaluate(node, returnType);
+        } finally {
+            reusable.release(compiled);
+        }
+    }
+
+    /**
+     * Check if a document is a SOAP 1.1 Fault, i.e. the Body of the Envelope contains a Fault element.
+     * A walk over the top-level elements, no XPath
+     * @param doc The document
+     * @return True if the document is a SOAP Fault
+     */
+    public static boolean isSoapFault(Document doc) {
+        Element envelope = doc.getDocumentElement();
+        if (envelope == null || !isSoapElement(envelope, "Envelope")) {
+            return false;
+        }
+        for (Node body = envelope.getFirstChild(); body != null; body = body.getNextSibling()) {
+            if (isSoapElement(body, "Body")) {
+                for (Node child = body.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    if (isSoapElement(child, "Fault")) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the operation of a SOAP 1.1 message: the local name of the first element in the Body.
+     * A streaming scan that stops at that element, no DOM
+     * @param xml The message. The stream is not closed
+     * @return The local name, or null if the message has no (non-empty) SOAP Body
+     */
+    public static String getSoapBodyElement(InputStream xml) throws XMLStreamException {
+        XMLStreamReader reader = newXMLStreamReader(xml);
+        try {
+            int depth = 0;
+            boolean inBody = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    if (inBody) {
+                        return reader.getLocalName();
+                    }
+                    inBody = depth == 2 && "Body".equals(reader.getLocalName())
+                            && MyNamespaceContext.SOAP_ENV_NS.equals(reader.getNamespaceURI());
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    inBody = false;
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean isSoapElement(Node node, String localName) {
+        return node.getNodeType() == Node.ELEMENT_NODE
+                && localName.equals(node.getLocalName())
+                && MyNamespaceContext.SOAP_ENV_NS.equals(node.getNamespaceURI());
     }
 
     public static String renderDOM(Document doc, boolean prettyPrint) throws TransformerException {
@@ -91,21 +290,134 @@ public class XmlTools {
     }
 
     public static String renderDOM(Node doc, boolean prettyPrint) throws TransformerException {
-        Transformer transformer = getTransformer();
         if (prettyPrint) {
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            StringWriter sw = new StringWriter();
+            transform(indentingTransformers, doc, new StreamResult(sw));
+            return sw.toString();
+        }
+        ByteArrayOutputStream2 out = new ByteArrayOutputStream2();
+        serializer.serialize(doc, out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serialize a DOM as UTF-8 bytes, without an intermediate String
+     * @param doc The document or node to serialize
+     * @param prettyPrint Indent the output
+     * @param out Stream to write to. It is not closed
+     */
+    public static void renderDOM(Node doc, boolean prettyPrint, OutputStream out) throws TransformerException {
+        if (prettyPrint) {
+            transform(indentingTransformers, doc, new StreamResult(out));
         } else {
-            transformer.setOutputProperty(OutputKeys.INDENT, "no");
+            serializer.serialize(doc, out);
+        }
+    }
+
+    private static void transform(Reusable<Transformer> reusable, Node doc, StreamResult result) throws TransformerException {
+        Transformer transformer = reusable.acquire();
+        try {
+            transformer.transform(new DOMSource(doc), result);
+        } finally {
+            reusable.release(transformer);
         }
-        StringWriter sw = new StringWriter();
-        transformer.transform(new DOMSource(doc), new StreamResult(sw));
-        return sw.toString();
     }
 
     public static Document parseXML(String xml) throws SAXException, IOException {
-        DocumentBuilder domBuilder = getDocumentBuilder();
-        InputSource inputSource = new InputSource(new StringReader(xml));
-        return domBuilder.parse(inputSource);
+        return parse(new InputSource(new StringReader(xml)));
+    }
+
+    /**
+     * Parse an XML document from bytes. The parser detects the encoding from the byte order mark
+     * and the XML declaration, so the bytes are not decoded to a String first
+     */
+    public static Document parseXML(byte[] xml) throws SAXException, IOException {
+        return parseXML(new ByteArrayInputStream(xml));
+    }
+
+    /**
+     * Parse an XML document from the remaining bytes of a buffer. The buffer position is not changed
+     */
+    public static Document parseXML(ByteBuffer xml) throws SAXException, IOException {
+        if (xml.hasArray()) {
+            return parseXML(new ByteArrayInputStream(xml.array(), xml.arrayOffset() + xml.position(), xml.remaining()));
+        }
+        byte[] bytes = new byte[xml.remaining()];
+        xml.duplicate().get(bytes);
+        return parseXML(bytes);
+    }
+
+    /**
+     * Parse an XML document from a stream. The stream is read to the end, and may be closed by the parser
+     */
+    public static Document parseXML(InputStream xml) throws SAXException, IOException {
+        return parse(new InputSource(xml));
+    }
+
+    private static Document parse(InputSource inputSource) throws SAXException, IOException {
+        DocumentBuilder domBuilder = documentBuilders.acquire();
+        try {
+            return domBuilder.parse(inputSource);
+        } finally {
+            documentBuilders.release(domBuilder);
+        }
+    }
+
+    /**
+     * Create a streaming (StAX) reader. DTDs and external entities are not supported
+     * @param xml The XML document. The stream is not closed by the reader
+     */
+    public static XMLStreamReader newXMLStreamReader(InputStream xml) throws XMLStreamException {
+        return xmlInputFactory.createXMLStreamReader(xml);
+    }
+
+    /**
+     * Copy all events of a streaming reader to a writer, without building a tree
+     * @param reader Positioned at the start of the document
+     * @param writer Receives the events. It is flushed, not closed
+     */
+    public static void copy(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        int event = reader.getEventType();
+        while (true) {
+            switch (event) {
+                case XMLStreamConstants.START_DOCUMENT -> writer.writeStartDocument(StandardCharsets.UTF_8.name(),
+                        reader.getVersion() != null ? reader.getVersion() : "1.0");
+                case XMLStreamConstants.START_ELEMENT -> {
+                    writer.writeStartElement(nonNull(reader.getPrefix()), reader.getLocalName(), nonNull(reader.getNamespaceURI()));
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        String prefix = reader.getNamespacePrefix(i);
+                        if (prefix == null || prefix.isEmpty()) {
+                            writer.writeDefaultNamespace(nonNull(reader.getNamespaceURI(i)));
+                        } else {
+                            writer.writeNamespace(prefix, nonNull(reader.getNamespaceURI(i)));
+                        }
+                    }
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        writer.writeAttribute(nonNull(reader.getAttributePrefix(i)), nonNull(reader.getAttributeNamespace(i)),
+                                reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                    }
+                }
+                case XMLStreamConstants.END_ELEMENT -> writer.writeEndElement();
+                case XMLStreamConstants.CHARACTERS, XMLStreamConstants.SPACE ->
+                        writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                case XMLStreamConstants.CDATA -> writer.writeCData(reader.getText());
+                case XMLStreamConstants.COMMENT -> writer.writeComment(reader.getText());
+                case XMLStreamConstants.PROCESSING_INSTRUCTION -> writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                case XMLStreamConstants.END_DOCUMENT -> {
+                    writer.writeEndDocument();
+                    writer.flush();
+                    return;
+                }
+                default -> {
+                    // DTD and entity references are not supported
+                }
+            }
+            event = reader.next();
+        }
+    }
+
+    private static String nonNull(String s) {
+        return s == null ? "" : s;
     }
 
     /**
@@ -115,31 +427,32 @@ public class XmlTools {
      */
     public static class MyNamespaceContext implements javax.xml.namespace.NamespaceContext {
 
+        static final String SOAP_ENV_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+
+        private static final Map<String, String> namespaces = Map.ofEntries(
+                Map.entry("xml", XMLConstants.XML_NS_URI),
+                Map.entry("xmlns", XMLConstants.XMLNS_ATTRIBUTE_NS_URI),
+                Map.entry("xs", XMLConstants.W3C_XML_SCHEMA_NS_URI),
+                Map.entry("xsd", XMLConstants.W3C_XML_SCHEMA_NS_URI),
+                Map.entry("wsdl", "http://schemas.xmlsoap.org/wsdl/"),
+                Map.entry("soap", "http://schemas.xmlsoap.org/wsdl/soap/"),
+                Map.entry("soap-env", SOAP_ENV_NS),
+                Map.entry("soapenv", SOAP_ENV_NS),
+                Map.entry("wsse", "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd"),
+                Map.entry("wsu", "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-utility-1.0.xsd"),
+                Map.entry("ds", "http://www.w3.org/2000/09/xmldsig#")
+        );
+
         @Override
         public String getNamespaceURI(String prefix) {
             if (prefix == null) {
                 throw new IllegalArgumentException("Null prefix");
-            } else if ("xml".equals(prefix)) {
-                return XMLConstants.XML_NS_URI;
-            } else if ("xmlns".equals(prefix)) {
-                return XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
-            } else if ("xs".equals(prefix) || "xsd".equals(prefix)) {
-                return XMLConstants.W3C_XML_SCHEMA_NS_URI;
-            } else if ("wsdl".equals(prefix)) {
-                return "http://schemas.xmlsoap.org/wsdl/";
-            } else if ("soap".equals(prefix)) {
-                return "http://schemas.xmlsoap.org/wsdl/soap/";
-            } else if ("soap-env".equalsIgnoreCase(prefix) || "soapenv".equals(prefix)) {
-                return "http://schemas.xmlsoap.org/soap/envelope/";
-            } else if ("wsse".equals(prefix)) {
-                return "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd";
-            } else if ("wsu".equals(prefix)) {
-                return "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-utility-1.0.xsd";
-            } else if ("ds".equals(prefix)) {
-                return "http://www.w3.org/2000/09/xmldsig#";
-            } else {
-                return "";
             }
+            String uri = namespaces.get(prefix);
+            if (uri == null && "soap-env".equalsIgnoreCase(prefix)) {
+                uri = SOAP_ENV_NS;      // SOAP-ENV, Soap-Env, ...
+            }
+            return uri != null ? uri : "";
         }
 
         // This method isn't necessary for XPath processing.
@@ -0,0 +1,72 @@
+package nl.odido.eai.wssclient;
+
+import org.eclipse.jetty.util.ByteArrayOutputStream2;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+/**
+ * Measures the bytes allocated per message by the String based and the byte based sign/verify paths,
+ * as the proxy uses them. Not a unit test; run on a HotSpot JVM:
+ * <pre>
+ * java -cp target/classes:target/test-classes:{dependencies} nl.odido.eai.wssclient.AllocationBenchmark [iterations] [body repeat]
+ * </pre>
+ * The body repeat factor pads the test message with copies of its body content, to see the effect on larger messages
+ */
+public class AllocationBenchmark {
+
+    @FunctionalInterface
+    interface Task {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int repeat = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+        WssUtils wss = WssUtils.newWssUtils("./src/test/resources/wss_keystore.jks", "secret", "wsscert",
+                "./src/test/resources/wss_truststore.jks", "secret", Collections.emptyList());
+        String message = padBody(new TestTools().readResourceFile("SoapInputMessage.xml"), repeat);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        byte[] signedBytes = wss.signWSS(messageBytes);
+
+        System.out.printf("message size %d bytes, signed %d bytes, %d iterations%n", messageBytes.length, signedBytes.length, iterations);
+
+        // the request and response paths of the proxy before and after the change
+        measure("sign (String)", iterations, () -> {
+            String body = new String(new ByteArrayInputStream(messageBytes).readAllBytes(), StandardCharsets.UTF_8);
+            wss.signWSS(body).getBytes(StandardCharsets.UTF_8);
+        });
+        measure("sign (bytes)", iterations, () -> {
+            ByteArrayOutputStream2 out = new ByteArrayOutputStream2(messageBytes.length + 4096);
+            wss.signWSS(new ByteArrayInputStream(messageBytes), out);
+        });
+        measure("verify (String)", iterations, () -> wss.verifyWSS(new String(signedBytes, StandardCharsets.UTF_8)));
+        measure("verify (bytes)", iterations, () -> wss.verifyWSS(signedBytes));
+    }
+
+    static String padBody(String message, int repeat) {
+        int start = message.indexOf("<soapenv:Body>") + "<soapenv:Body>".length();
+        int end = message.indexOf("</soapenv:Body>");
+        String content = message.substring(start, end);
+        return message.substring(0, end) + content.repeat(repeat - 1) + message.substring(end);
+    }
+
+    private static void measure(String name, int iterations, Task task) throws Exception {
+        var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < iterations / 4; i++) {
+            task.run();     // warm-up
+        }
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            task.run();
+        }
+        long elapsedNs = System.nanoTime() - start;
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        System.out.printf("%-16s %10d bytes/msg %8d us/msg%n", name, allocated / iterations, elapsedNs / iterations / 1000);
+    }
+}
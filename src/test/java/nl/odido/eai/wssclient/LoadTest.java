@@ -0,0 +1,141 @@
+package nl.odido.eai.wssclient;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.util.BytesRequestContent;
+import org.eclipse.jetty.server.Server;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test of the proxy on one machine: a closed-loop load generator, the proxy as configured in {@link Main},
+ * and a {@link SigningStubBackend} that verifies each request and answers with a signed response, which the proxy verifies.
+ * Not a unit test:
+ * <pre>
+ * java -cp target/classes:target/test-classes:{dependencies} nl.odido.eai.wssclient.LoadTest [concurrency] [duration s] [payload mix] [thread mode] [async]
+ * </pre>
+ * The payload mix is a list of body repeat factors with weights, e.g. {@code 1:90,100:9,1000:1} sends 90% plain test messages,
+ * 9% with the body content repeated 100 times and 1% with it repeated 1000 times. The first 10% of the duration is warm-up
+ * and is not measured. The report shows throughput, latency percentiles and the errors by cause
+ */
+public class LoadTest {
+
+    record Payload(byte[] body, int weight) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int durationSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        String mix = args.length > 2 ? args[2] : "1:90,100:9,1000:1";
+        ThreadPools.Mode mode = args.length > 3 ? ThreadPools.Mode.valueOf(args[3].toUpperCase()) : Main.threadMode;
+        boolean async = args.length > 4 ? Boolean.parseBoolean(args[4]) : Main.asyncProxy;
+
+        WssUtils wss = WssUtils.newWssUtils("./src/test/resources/wss_keystore.jks", "secret", "wsscert",
+                "./src/test/resources/wss_truststore.jks", "secret", Collections.emptyList());
+        String message = new TestTools().readResourceFile("SoapInputMessage.xml");
+
+        List<Payload> payloads = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split(":");
+            byte[] body = AllocationBenchmark.padBody(message, Integer.parseInt(parts[0].trim())).getBytes(StandardCharsets.UTF_8);
+            payloads.add(new Payload(body, parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1));
+        }
+        int totalWeight = payloads.stream().mapToInt(Payload::weight).sum();
+
+        SigningStubBackend stub = new SigningStubBackend(wss, message.getBytes(StandardCharsets.UTF_8));
+        Server backend = new Server(0);
+        backend.setHandler(stub);
+        backend.start();
+
+        // the test certificate, so that the proxy checks the serial of the signed responses too
+        ProxyHandler handler = new ProxyHandler(60, "http://localhost:" + TestProxyHandler.localPort(backend), wss,
+                new BigInteger("734eaf87f23dae80", 16));
+        handler.setThreadMode(mode);
+        handler.setAsyncMode(async);
+        handler.setAdmissionControl(new AdmissionControl(Main.maxInFlightRequests, Main.maxQueuedRequests,
+                Main.maxQueueWaitMillis, Main.retryAfterSeconds));
+        handler.setResponseMemoryThreshold(Main.responseMemoryThreshold);
+        ProxyServer proxyServer = new ProxyServer(handler, 60, "localhost", 0, mode);
+        handler.startClient();
+        proxyServer.start();
+        String url = "http://localhost:" + TestProxyHandler.localPort(proxyServer.server) + "/loadtest";
+
+        HttpClient client = new HttpClient();
+        client.setMaxConnectionsPerDestination(concurrency);
+        client.setMaxRequestsQueuedPerDestination(concurrency);
+        client.start();
+
+        System.out.printf("load test: concurrency %d, %d s, mix %s, thread mode %s, async %s%n", concurrency, durationSeconds, mix, mode, async);
+        for (Payload payload : payloads) {
+            System.out.printf("  payload %8d bytes, weight %d%n", payload.body().length, payload.weight());
+        }
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        AtomicLong bytesSent = new AtomicLong();
+        Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+        Semaphore outstanding = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(durationSeconds) / 10;
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        try {
+            while (System.nanoTime() < end) {
+                outstanding.acquire();
+                byte[] body = pick(payloads, totalWeight);
+                long sent = System.nanoTime();
+                client.POST(url)
+                        .timeout(60, TimeUnit.SECONDS)
+                        .body(new BytesRequestContent("text/xml; charset=utf-8", body))
+                        .send(result -> {
+                            if (sent >= measureFrom) {
+                                if (result.isSucceeded() && result.getResponse().getStatus() == 200) {
+                                    latencies.record((System.nanoTime() - sent) / 1000);
+                                    bytesSent.addAndGet(body.length);
+                                } else {
+                                    String reason = result.isFailed() ? result.getFailure().getClass().getSimpleName() : "HTTP " + result.getResponse().getStatus();
+                                    errors.computeIfAbsent(reason, r -> new AtomicLong()).incrementAndGet();
+                                }
+                            }
+                            outstanding.release();
+                        });
+            }
+            outstanding.acquire(concurrency);
+            double measuredSeconds = (System.nanoTime() - measureFrom) / 1e9;
+
+            long ok = latencies.getCount();
+            long failed = errors.values().stream().mapToLong(AtomicLong::get).sum();
+            System.out.printf("requests  %10d ok, %d failed, %d rejected by the back-end%n", ok, failed, stub.getRejected());
+            System.out.printf("throughput %9.1f req/s, %.1f MB/s%n", ok / measuredSeconds, bytesSent.get() / measuredSeconds / 1_000_000);
+            System.out.printf("latency   p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+                    latencies.getPercentile(50) / 1000.0, latencies.getPercentile(99) / 1000.0,
+                    latencies.getPercentile(99.9) / 1000.0, latencies.getPercentile(100) / 1000.0);
+            System.out.printf("errors    %s%n", new TreeMap<>(errors));
+            System.out.printf("admission %s%n", handler.getAdmissionControl().getStats());
+        } finally {
+            client.stop();
+            proxyServer.stop();
+            handler.stopClient();
+            backend.stop();
+        }
+    }
+
+    private static byte[] pick(List<Payload> payloads, int totalWeight) {
+        int r = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Payload payload : payloads) {
+            r -= payload.weight();
+            if (r < 0) {
+                return payload.body();
+            }
+        }
+        return payloads.get(payloads.size() - 1).body();
+    }
+}
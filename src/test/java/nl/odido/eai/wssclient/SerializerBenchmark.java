@@ -0,0 +1,47 @@
+package nl.odido.eai.wssclient;
+
+import org.eclipse.jetty.util.ByteArrayOutputStream2;
+import org.w3c.dom.Document;
+
+import java.util.Collections;
+
+/**
+ * Compares the serialization time of a signed envelope with the direct DOM writer and the Saxon identity transformer,
+ * for a small and a large message. Not a unit test; run as:
+ * <pre>
+ * java -cp target/classes:target/test-classes:{dependencies} nl.odido.eai.wssclient.SerializerBenchmark [iterations] [large body repeat]
+ * </pre>
+ */
+public class SerializerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int largeRepeat = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        WssUtils wss = WssUtils.newWssUtils("./src/test/resources/wss_keystore.jks", "secret", "wsscert",
+                "./src/test/resources/wss_truststore.jks", "secret", Collections.emptyList());
+        String message = new TestTools().readResourceFile("SoapInputMessage.xml");
+
+        for (int repeat : new int[] {1, largeRepeat}) {
+            Document signed = XmlTools.parseXML(wss.signWSS(AllocationBenchmark.padBody(message, repeat)));
+            int runs = Math.max(10, iterations / repeat);
+            measure("direct", signed, XmlTools.directSerializer, runs);
+            measure("saxon", signed, XmlTools.transformerSerializer, runs);
+        }
+    }
+
+    private static void measure(String name, Document doc, XmlTools.DomSerializer serializer, int iterations) throws Exception {
+        ByteArrayOutputStream2 out = new ByteArrayOutputStream2();
+        for (int i = 0; i < iterations / 4; i++) {
+            out.reset();
+            serializer.serialize(doc, out);     // warm-up
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            out.reset();
+            serializer.serialize(doc, out);
+        }
+        long elapsedNs = System.nanoTime() - start;
+        System.out.printf("%-8s %10d bytes %8d iterations %10.1f us/msg%n", name, out.getCount(), iterations, elapsedNs / 1000.0 / iterations);
+    }
+}
@@ -0,0 +1,65 @@
+package nl.odido.eai.wssclient;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A local stand-in for the WS-Security back-end, for load tests: verifies the signature of each request
+ * and answers with a freshly signed response. Uses the test keystores, so the proxy trusts its responses
+ */
+public class SigningStubBackend extends AbstractHandler {
+
+    static Logger log = Logger.getLogger(SigningStubBackend.class.getName());
+
+    private final WssUtils wss;
+    private final byte[] responseMessage;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param wss Verifies the requests and signs the responses
+     * @param responseMessage Unsigned SOAP response, signed for every request
+     */
+    public SigningStubBackend(WssUtils wss, byte[] responseMessage) {
+        this.wss = wss;
+        this.responseMessage = responseMessage;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        baseRequest.setHandled(true);
+        try {
+            if (wss.verifyWSS(request.getInputStream()) == null) {
+                throw new IllegalArgumentException("Request is a SOAP Fault");
+            }
+        } catch (Exception e) {
+            rejected.incrementAndGet();
+            log.log(Level.FINE, "rejecting request", e);
+            response.sendError(400, "Invalid request signature");
+            return;
+        }
+        try {
+            byte[] signed = wss.signWSS(responseMessage);
+            response.setStatus(200);
+            response.setContentType("text/xml; charset=utf-8");
+            response.setContentLength(signed.length);
+            response.getOutputStream().write(signed);
+        } catch (Exception e) {
+            log.log(Level.WARNING, "error signing response", e);
+            response.sendError(500, "Error signing response");
+        }
+    }
+
+    /**
+     * @return Number of requests rejected because of an invalid signature
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+}
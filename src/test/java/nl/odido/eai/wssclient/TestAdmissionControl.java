@@ -0,0 +1,48 @@
+package nl.odido.eai.wssclient;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+public class TestAdmissionControl {
+
+    @Test
+    public void testQueueAndHandOver() {
+        AdmissionControl admission = new AdmissionControl(1, 1, 60_000, 1);
+        long now = System.currentTimeMillis();
+
+        CompletableFuture<Void> first = admission.admit(now);
+        CompletableFuture<Void> second = admission.admit(now);
+        CompletableFuture<Void> third = admission.admit(now);
+
+        Assertions.assertTrue(first.isDone());
+        Assertions.assertFalse(second.isDone());
+        Assertions.assertTrue(third.isCompletedExceptionally());
+        Assertions.assertEquals(new AdmissionControl.Stats(1, 1, 1, 1), admission.getStats());
+
+        admission.release();
+        Assertions.assertTrue(second.isDone());
+        Assertions.assertFalse(second.isCompletedExceptionally());
+        Assertions.assertEquals(new AdmissionControl.Stats(1, 0, 2, 1), admission.getStats());
+
+        admission.release();
+        Assertions.assertEquals(new AdmissionControl.Stats(0, 0, 2, 1), admission.getStats());
+    }
+
+    @Test
+    public void testQueueWaitTimeout() {
+        AdmissionControl admission = new AdmissionControl(1, 10, 100, 1);
+        admission.admit(System.currentTimeMillis()).join();
+
+        CompletableFuture<Void> waiting = admission.admit(System.currentTimeMillis());
+        CompletionException e = Assertions.assertThrows(CompletionException.class, waiting::join);
+        Assertions.assertInstanceOf(AdmissionControl.OverloadedException.class, e.getCause());
+
+        CompletableFuture<Void> late = admission.admit(System.currentTimeMillis() - 200);
+        Assertions.assertTrue(late.isCompletedExceptionally());
+        Assertions.assertEquals(new AdmissionControl.Stats(1, 0, 1, 2), admission.getStats());
+    }
+
+}
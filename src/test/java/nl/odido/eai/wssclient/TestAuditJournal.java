@@ -0,0 +1,87 @@
+package nl.odido.eai.wssclient;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class TestAuditJournal {
+
+    private static SpoolBuffer spool(String content) throws Exception {
+        SpoolBuffer buffer = new SpoolBuffer(1024);
+        buffer.write(content.getBytes(StandardCharsets.UTF_8));
+        return buffer;
+    }
+
+    private static List<Path> segments(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().toList();
+        }
+    }
+
+    @Test
+    public void testRecordAndTruncate(@TempDir Path dir) throws Exception {
+        AuditJournal journal = new AuditJournal(dir, 1.0, 10, 1024 * 1024, 4);
+        ByteBuffer request = ByteBuffer.wrap("<request>0123456789</request>".getBytes(StandardCharsets.UTF_8));
+        try (SpoolBuffer response = spool("<response/>")) {
+            Assertions.assertTrue(journal.sample());
+            journal.record("/some/service", 200, request, response);
+        }
+        journal.close();
+
+        Assertions.assertEquals(new AuditJournal.Stats(1, 0, 1), journal.getStats());
+        Assertions.assertEquals(0, request.position());
+        List<Path> segments = segments(dir);
+        Assertions.assertEquals(1, segments.size());
+        String content = Files.readString(segments.get(0));
+        Assertions.assertTrue(content.startsWith("=== 1 "));
+        Assertions.assertTrue(content.contains(" /some/service status=200 request=10/29 response=10/11\n<request>0\n<response/\n"));
+    }
+
+    @Test
+    public void testSamplingAndRotation(@TempDir Path dir) throws Exception {
+        Assertions.assertFalse(new AuditJournal(dir.resolve("none"), 0.0, 10, 1024, 2).sample());
+
+        AuditJournal journal = new AuditJournal(dir.resolve("rotated"), 1.0, 100, 200, 2);
+        for (int i = 0; i < 20; i++) {
+            try (SpoolBuffer response = spool("<response>" + i + "</response>")) {
+                journal.record("/service", 200, ByteBuffer.wrap(("<request>" + i + "</request>").getBytes(StandardCharsets.UTF_8)), response);
+            }
+        }
+        journal.close();
+
+        Assertions.assertEquals(20, journal.getStats().written());
+        Assertions.assertEquals(2, segments(dir.resolve("rotated")).size());
+    }
+
+    @Test
+    public void testSpooledResponse(@TempDir Path dir) throws Exception {
+        AuditJournal journal = new AuditJournal(dir, 1.0, 12, 1024 * 1024, 4);
+        try (SpoolBuffer response = new SpoolBuffer(8, journal.getMaxPayloadBytes())) {
+            // spills over to a file at the second write; the head is completed from the later writes
+            response.write("<response".getBytes(StandardCharsets.UTF_8));
+            response.write(">spooled</response>".getBytes(StandardCharsets.UTF_8));
+            Assertions.assertFalse(response.isInMemory());
+            Assertions.assertEquals("<respo", new String(response.head(6), StandardCharsets.UTF_8));
+            journal.record("/some/service", 200, ByteBuffer.wrap("<request/>".getBytes(StandardCharsets.UTF_8)), response);
+        }
+        journal.close();
+
+        String content = Files.readString(segments(dir).get(0));
+        Assertions.assertTrue(content.contains(" /some/service status=200 request=10/10 response=12/28\n<request/>\n<response>sp\n"));
+    }
+
+    @Test
+    public void testCloseKeepsInterrupt(@TempDir Path dir) throws Exception {
+        AuditJournal journal = new AuditJournal(dir, 1.0, 10, 1024, 2);
+        Thread.currentThread().interrupt();
+        journal.close();
+        Assertions.assertTrue(Thread.interrupted());
+    }
+}
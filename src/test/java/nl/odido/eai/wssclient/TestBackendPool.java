@@ -0,0 +1,128 @@
+package nl.odido.eai.wssclient;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestBackendPool {
+
+    @Test
+    public void testLeastOutstanding() {
+        BackendPool pool = new BackendPool(List.of("http://a", "http://b"), BackendPool.Strategy.LEAST_OUTSTANDING, 3, 60_000);
+        BackendPool.Backend first = pool.choose();
+        BackendPool.Backend second = pool.choose();
+        Assertions.assertNotSame(first, second);
+
+        pool.onComplete(first, 1_000_000, true);
+        Assertions.assertSame(first, pool.choose());
+        Assertions.assertEquals(1, first.getOutstanding());
+        Assertions.assertEquals(1, second.getOutstanding());
+    }
+
+    @Test
+    public void testEwmaLatency() {
+        BackendPool pool = new BackendPool(List.of("http://a", "http://b"), BackendPool.Strategy.EWMA_LATENCY, 3, 60_000);
+        BackendPool.Backend slow = pool.getBackends().get(0);
+        BackendPool.Backend fast = pool.getBackends().get(1);
+        // a back-end without latency samples is tried first, so both get a sample
+        for (int i = 0; i < 2; i++) {
+            BackendPool.Backend chosen = pool.choose();
+            pool.onComplete(chosen, chosen == slow ? 50_000_000 : 5_000_000, true);
+        }
+        Assertions.assertEquals(50_000_000, slow.getEwmaLatencyNanos());
+        for (int i = 0; i < 5; i++) {
+            BackendPool.Backend chosen = pool.choose();
+            Assertions.assertSame(fast, chosen);
+            pool.onComplete(chosen, 5_000_000, true);
+        }
+        Assertions.assertEquals(5_000_000, fast.getEwmaLatencyNanos());
+
+        // a fast failure (e.g. connection refused) does not make a back-end look fast
+        BackendPool single = new BackendPool(List.of("http://a"), BackendPool.Strategy.EWMA_LATENCY, 3, 60_000);
+        BackendPool.Backend backend = single.choose();
+        single.onComplete(backend, 50_000_000, true);
+        single.onComplete(single.choose(), 1_000, false);
+        Assertions.assertEquals(50_000_000, backend.getEwmaLatencyNanos());
+    }
+
+    @Test
+    public void testEwmaLatencyWithoutSamples() {
+        BackendPool pool = new BackendPool(List.of("http://a", "http://b", "http://c"), BackendPool.Strategy.EWMA_LATENCY, 3, 60_000);
+        // without samples, the requests in progress count: the first three requests go to different nodes
+        BackendPool.Backend first = pool.choose();
+        BackendPool.Backend second = pool.choose();
+        BackendPool.Backend stuck = pool.choose();
+        Assertions.assertEquals(3, pool.getBackends().stream().filter(b -> b.getOutstanding() == 1).count());
+        pool.onComplete(first, 5_000_000, true);
+        pool.onComplete(second, 5_000_000, true);
+
+        // the first request of the third node is still in progress: it gets its share, not all new requests
+        for (int i = 0; i < 12; i++) {
+            pool.choose();
+        }
+        Assertions.assertEquals(0, stuck.getEwmaLatencyNanos());
+        Assertions.assertTrue(stuck.getOutstanding() <= 5, "outstanding on the node without samples: " + stuck.getOutstanding());
+    }
+
+    @Test
+    public void testEjection() {
+        BackendPool pool = new BackendPool(List.of("http://a", "http://b"), BackendPool.Strategy.LEAST_OUTSTANDING, 2, 60_000);
+        BackendPool.Backend failing = pool.getBackends().get(0);
+        BackendPool.Backend good = pool.getBackends().get(1);
+        pool.onComplete(failing, 1_000_000, false);
+        pool.onComplete(failing, 1_000_000, false);
+
+        for (int i = 0; i < 10; i++) {
+            BackendPool.Backend chosen = pool.choose();
+            Assertions.assertSame(good, chosen);
+            pool.onComplete(chosen, 1_000_000, true);
+        }
+
+        // when no back-end is available, the ejected ones are still used
+        pool.setHealthy(good, false);
+        Assertions.assertFalse(good.isHealthy());
+        BackendPool.Backend chosen = pool.choose();
+        Assertions.assertNotNull(chosen);
+        pool.onComplete(chosen, 1_000_000, true);
+    }
+
+    @Test
+    public void testEjectionReset() throws InterruptedException {
+        BackendPool pool = new BackendPool(List.of("http://a"), BackendPool.Strategy.LEAST_OUTSTANDING, 1, 100);
+        BackendPool.Backend backend = pool.getBackends().get(0);
+        pool.onComplete(pool.choose(), 1_000_000, false);
+        Assertions.assertEquals(1, backend.getEjections());
+
+        // a success right after the ejection ends does not reset the ejection time
+        Thread.sleep(110);
+        pool.onComplete(pool.choose(), 1_000_000, true);
+        Assertions.assertEquals(1, backend.getEjections());
+
+        // a success after one more ejection time does
+        Thread.sleep(110);
+        pool.onComplete(pool.choose(), 1_000_000, true);
+        Assertions.assertEquals(0, backend.getEjections());
+    }
+
+    @Test
+    public void testRouter() {
+        Map<String, BackendPool> routes = new LinkedHashMap<>();
+        BackendPool all = new BackendPool(List.of("http://all"), BackendPool.Strategy.LEAST_OUTSTANDING, 3, 60_000);
+        BackendPool orders = new BackendPool(List.of("http://orders1", "http://orders2"), BackendPool.Strategy.EWMA_LATENCY, 3, 60_000);
+        routes.put("/", all);
+        routes.put("/services/orders", orders);
+        BackendRouter router = new BackendRouter(routes, "/", 0);
+
+        Assertions.assertSame(orders, router.route("/services/orders/v1"));
+        Assertions.assertSame(orders, router.route("/services/orders"));
+        Assertions.assertSame(all, router.route("/services/ordersArchive"));
+        Assertions.assertSame(all, router.route("/services/customers"));
+        Assertions.assertEquals(3, router.getBackends().size());
+        Assertions.assertNull(new BackendRouter(Map.of("/services", all), "/", 0).route("/other"));
+        Assertions.assertNull(new BackendRouter(Map.of("/services", all), "/", 0).route("/servicesOld"));
+        Assertions.assertSame(all, new BackendRouter(Map.of("/services/", all), "/", 0).route("/services"));
+    }
+}
@@ -0,0 +1,67 @@
+package nl.odido.eai.wssclient;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+public class TestBatchProcessor {
+
+    static WssUtils wss;
+    private final TestTools tools = new TestTools();
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        wss = WssUtils.newWssUtils(
+                "./src/test/resources/wss_keystore.jks",
+                "secret",
+                "wsscert",
+                "./src/test/resources/wss_truststore.jks",
+                "secret",
+                Collections.emptyList()
+        );
+    }
+
+    @Test
+    public void testSignAndVerifyDirectory(@TempDir Path dir) throws Exception {
+        Path input = Files.createDirectories(dir.resolve("in/sub"));
+        String message = tools.readResourceFile("SoapInputMessage.xml");
+        Files.writeString(input.resolve("a.xml"), message);
+        Files.writeString(input.getParent().resolve("b.xml"), message.replace("\n", "\r\n"));
+        Path output = dir.resolve("out");
+
+        BatchProcessor batch = new BatchProcessor(wss, 2);
+        BatchProcessor.Summary signed = batch.sign(dir.resolve("in"), output);
+
+        Assertions.assertEquals(2, signed.files());
+        Assertions.assertEquals(0, signed.failed());
+        Assertions.assertTrue(Files.exists(output.resolve("sub/a.xml")));
+        Assertions.assertTrue(Files.exists(output.resolve("b.xml")));
+
+        BatchProcessor.Summary verified = batch.verify(output);
+        Assertions.assertEquals(2, verified.files());
+        Assertions.assertEquals(0, verified.failed());
+    }
+
+    @Test
+    public void testVerifyManifest(@TempDir Path dir) throws Exception {
+        byte[] signed = wss.signWSS(tools.readResourceFile("SoapInputMessage.xml").getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("signed.xml"), signed);
+        Files.write(dir.resolve("tampered.xml"), new String(signed, StandardCharsets.UTF_8)
+                .replace("</soapenv:Body>", "<extra/></soapenv:Body>").getBytes(StandardCharsets.UTF_8));
+        Path manifest = Files.writeString(dir.resolve("manifest.txt"), "# files to verify\nsigned.xml\n\ntampered.xml\n");
+
+        Assertions.assertEquals(List.of(dir.resolve("signed.xml"), dir.resolve("tampered.xml")),
+                BatchProcessor.listInputs(manifest));
+
+        BatchProcessor.Summary verified = new BatchProcessor(wss, 2).verify(manifest);
+        Assertions.assertEquals(2, verified.files());
+        Assertions.assertEquals(1, verified.failed());
+    }
+}
@@ -0,0 +1,68 @@
+package nl.odido.eai.wssclient;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.io.MappedByteBufferPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+
+public class TestCompression {
+
+    private final TestTools tools = new TestTools();
+
+    private static byte[] concat(ByteBuffer[] chunks) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer chunk : chunks) {
+            byte[] bytes = new byte[chunk.remaining()];
+            chunk.duplicate().get(bytes);
+            out.writeBytes(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        ByteBufferPool pool = new MappedByteBufferPool();
+        byte[] message = tools.readResourceFile("SoapInputMessage.xml").repeat(100).getBytes(StandardCharsets.UTF_8);
+        // random data does not compress: it spans several chunks
+        byte[] random = new byte[300 * 1024];
+        new Random(42).nextBytes(random);
+        for (byte[] data : new byte[][]{new byte[0], message, random}) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            ByteBuffer[] chunks = Compression.gzip(buffer, pool);
+            Assertions.assertEquals(0, buffer.position());
+            byte[] decoded = new GZIPInputStream(new ByteArrayInputStream(concat(chunks))).readAllBytes();
+            Assertions.assertArrayEquals(data, decoded);
+            for (ByteBuffer chunk : chunks) {
+                pool.release(chunk);
+            }
+        }
+        Assertions.assertTrue(concat(Compression.gzip(ByteBuffer.wrap(message), pool)).length < message.length / 10);
+        Assertions.assertTrue(Compression.gzip(ByteBuffer.wrap(random), pool).length > 1);
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        byte[] message = tools.readResourceFile("SoapInputMessage.xml").getBytes(StandardCharsets.UTF_8);
+        byte[] gzip = concat(Compression.gzip(ByteBuffer.wrap(message), new MappedByteBufferPool()));
+        ByteArrayOutputStream deflate = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(deflate)) {
+            out.write(message);
+        }
+
+        Assertions.assertArrayEquals(message, Compression.decode("GZIP",
+                new ByteArrayInputStream(gzip)).readAllBytes());
+        Assertions.assertArrayEquals(message, Compression.decode("deflate",
+                new ByteArrayInputStream(deflate.toByteArray())).readAllBytes());
+        Assertions.assertArrayEquals(message, Compression.decode(null, new ByteArrayInputStream(message)).readAllBytes());
+        Assertions.assertArrayEquals(message, Compression.decode("identity", new ByteArrayInputStream(message)).readAllBytes());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Compression.decode("br", new ByteArrayInputStream(message)));
+    }
+}
@@ -0,0 +1,63 @@
+package nl.odido.eai.wssclient;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestKeystoreWatcher {
+
+    private final TestTools tools = new TestTools();
+
+    private static KeyStore load(Path file) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = Files.newInputStream(file)) {
+            keyStore.load(in, "secret".toCharArray());
+        }
+        return keyStore;
+    }
+
+    @Test
+    public void testReload(@TempDir Path dir) throws Exception {
+        Path keystore = Files.copy(Path.of("./src/test/resources/wss_keystore.jks"), dir.resolve("keystore.jks"));
+        Path truststore = Files.copy(Path.of("./src/test/resources/wss_truststore.jks"), dir.resolve("truststore.jks"));
+        byte[] original = Files.readAllBytes(truststore);
+        AtomicReference<WssUtils> current = new AtomicReference<>();
+
+        try (KeystoreWatcher watcher = new KeystoreWatcher(List.of(keystore, truststore), 3600,
+                () -> WssUtils.newWssUtils(keystore.toString(), "secret", "wsscert", truststore.toString(), "secret", Collections.emptyList()),
+                current::set)) {
+            Assertions.assertFalse(watcher.poll());
+
+            // a broken (e.g. half written) file keeps the current WssUtils
+            Files.write(truststore, new byte[]{1, 2, 3});
+            Assertions.assertFalse(watcher.poll());
+            Assertions.assertNull(current.get());
+
+            // restored: unchanged compared to the loaded files
+            Files.write(truststore, original);
+            Assertions.assertFalse(watcher.poll());
+
+            KeyStore trusted = load(truststore);
+            trusted.setCertificateEntry("rotated", load(keystore).getCertificate("wsscert"));
+            try (OutputStream out = Files.newOutputStream(truststore)) {
+                trusted.store(out, "secret".toCharArray());
+            }
+            Assertions.assertTrue(watcher.poll());
+            Assertions.assertEquals(1, watcher.getReloads());
+
+            WssUtils wss = current.get();
+            byte[] signed = wss.signWSS(tools.readResourceFile("SoapInputMessage.xml").getBytes(StandardCharsets.UTF_8));
+            Assertions.assertNotNull(wss.verifyWSS(signed));
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package nl.odido.eai.wssclient;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.util.BytesRequestContent;
+import org.eclipse.jetty.client.util.FutureResponseListener;
+import org.eclipse.jetty.client.util.StringRequestContent;
+import org.eclipse.jetty.server.NetworkConnector;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+public class TestProxyHandler {
+
+    static WssUtils wss;
+    static Server backend;
+    static HttpClient client;
+    private final TestTools tools = new TestTools();
+
+    /**
+     * Back-end that returns the received (signed) request as response
+     */
+    static class EchoHandler extends AbstractHandler {
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+            byte[] body = request.getInputStream().readAllBytes();
+            response.setContentType("text/xml; charset=utf-8");
+            response.getOutputStream().write(body);
+            baseRequest.setHandled(true);
+        }
+    }
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        wss = WssUtils.newWssUtils(
+                "./src/test/resources/wss_keystore.jks",
+                "secret",
+                "wsscert",
+                "./src/test/resources/wss_truststore.jks",
+                "secret",
+                Collections.emptyList()
+        );
+        backend = new Server(0);
+        backend.setHandler(new EchoHandler());
+        backend.start();
+        client = new HttpClient();
+        client.start();
+    }
+
+    @AfterAll
+    public static void teardown() throws Exception {
+        client.stop();
+        backend.stop();
+    }
+
+    static int localPort(Server server) {
+        return ((NetworkConnector) server.getConnectors()[0]).getLocalPort();
+    }
+
+    private String proxy(ProxyHandler handler, String body) throws Exception {
+        ProxyServer proxyServer = new ProxyServer(handler, 10, "localhost", 0);
+        handler.startClient();
+        proxyServer.start();
+        try {
+            var response = client.POST("http://localhost:" + localPort(proxyServer.server) + "/some/service")
+                    .body(new StringRequestContent("text/xml", body))
+                    .send();
+            Assertions.assertEquals(200, response.getStatus());
+            return response.getContentAsString();
+        } finally {
+            proxyServer.stop();
+            handler.stopClient();
+        }
+    }
+
+    @Test
+    public void testProxy() throws Exception {
+        var handler = new ProxyHandler(10, "http://localhost:" + localPort(backend), wss, null);
+
+        var response = proxy(handler, tools.readResourceFile("SoapInputMessage.xml"));
+
+        Assertions.assertTrue(tools.newXpath().evaluateExpression("count(//soapenv:Header/wsse:Security/ds:Signature) = 1",
+                XmlTools.parseXML(response), Boolean.class));
+    }
+
+    @Test
+    public void testProxySpooledResponse() throws Exception {
+        var handler = new ProxyHandler(10, "http://localhost:" + localPort(backend), wss, new BigInteger("734eaf87f23dae80", 16));
+        handler.setResponseMemoryThreshold(256);
+
+        var response = proxy(handler, tools.readResourceFile("SoapInputMessage.xml"));
+
+        Assertions.assertTrue(tools.newXpath().evaluateExpression("count(//soapenv:Header/wsse:Security/ds:Signature) = 1",
+                XmlTools.parseXML(response), Boolean.class));
+    }
+
+    @Test
+    public void testProxyAsync() throws Exception {
+        var handler = new ProxyHandler(10, "http://localhost:" + localPort(backend), wss, null);
+        handler.setAsyncMode(true);
+        handler.setMaxInFlight(4);
+
+        var response = proxy(handler, tools.readResourceFile("SoapInputMessage.xml"));
+
+        Assertions.assertTrue(tools.newXpath().evaluateExpression("count(//soapenv:Header/wsse:Security/ds:Signature) = 1",
+                XmlTools.parseXML(response), Boolean.class));
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        var handler = new ProxyHandler(10, "http://localhost:" + localPort(backend), wss, new BigInteger("734eaf87f23dae80", 16));
+        ProxyServer proxyServer = new ProxyServer(handler, 10, "localhost", 0);
+        proxyServer.setMetrics(handler.getMetrics(), 0);
+        handler.startClient();
+        proxyServer.start();
+        try {
+            var response = client.POST("http://localhost:" + localPort(proxyServer.server) + "/some/service")
+                    .body(new StringRequestContent("text/xml", tools.readResourceFile("SoapInputMessage.xml")))
+                    .send();
+            Assertions.assertEquals(200, response.getStatus());
+
+            var metrics = client.GET("http://localhost:" + localPort(proxyServer.metricsServer) + "/metrics");
+            Assertions.assertEquals(200, metrics.getStatus());
+            String text = metrics.getContentAsString();
+            for (String stage : new String[]{"parse", "sign", "render", "backend", "verify", "write"}) {
+                Assertions.assertFalse(text.contains("wssproxy_stage_duration_seconds_count{stage=\"" + stage + "\"} 0\n"), stage);
+            }
+            Assertions.assertTrue(text.contains("wssproxy_responses_total{status=\"200\"} 1\n"));
+            Assertions.assertTrue(text.contains("wssproxy_pool_threads{pool=\"server\"}"));
+            Assertions.assertTrue(text.contains("wssproxy_pool_threads{pool=\"client\"}"));
+            Assertions.assertTrue(text.contains("wssproxy_requests_admitted_total 1\n"));
+        } finally {
+            proxyServer.stop();
+            handler.stopClient();
+        }
+    }
+
+    @Test
+    public void testProxyHttp2PreOpenedConnections() throws Exception {
+        var handler = new ProxyHandler(10, "http://localhost:" + localPort(backend), wss, null);
+        handler.setHttp2(true);     // plain HTTP back-end: HTTP/1.1
+        handler.setMaxConnections(4);
+        handler.setMinConnections(2);
+        handler.startClient();
+        try {
+            var pool = handler.backendConnectionPool();
+            for (int i = 0; i < 50 && pool.getConnectionCount() < 2; i++) {
+                Thread.sleep(100);
+            }
+            Assertions.assertEquals(2, pool.getConnectionCount());
+            Assertions.assertEquals(4, pool.getMaxConnectionCount());
+        } finally {
+            handler.stopClient();
+        }
+
+        var response = proxy(handler, tools.readResourceFile("SoapInputMessage.xml"));
+
+        Assertions.assertTrue(tools.newXpath().evaluateExpression("count(//soapenv:Header/wsse:Security/ds:Signature) = 1",
+                XmlTools.parseXML(response), Boolean.class));
+    }
+
+    @Test
+    public void testWarmUpAndReady() throws Exception {
+        var handler = new ProxyHandler(10, "http://localhost:" + localPort(backend), wss, null);
+        ProxyServer proxyServer = new ProxyServer(handler, 10, "localhost", 0);
+        proxyServer.setMetrics(handler.getMetrics(), 0);
+        Set<Thread> warmedUp = ConcurrentHashMap.newKeySet();
+        AtomicInteger cycles = new AtomicInteger();
+        proxyServer.setWarmUp(2, () -> {
+            warmedUp.add(Thread.currentThread());
+            cycles.incrementAndGet();
+            wss.warmUp();
+            return null;
+        });
+        Assertions.assertFalse(proxyServer.isReady());
+        handler.startClient();
+        proxyServer.start();
+        try {
+            Assertions.assertTrue(proxyServer.isReady());
+            Assertions.assertEquals(8, warmedUp.size());
+            Assertions.assertEquals(16, cycles.get());
+            var ready = client.GET("http://localhost:" + localPort(proxyServer.metricsServer) + "/ready");
+            Assertions.assertEquals(200, ready.getStatus());
+        } finally {
+            proxyServer.stop();
+            handler.stopClient();
+        }
+        Assertions.assertFalse(proxyServer.isReady());
+    }
+
+    @Test
+    public void testResponseCache() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Server countingBackend = new Server(0);
+        countingBackend.setHandler(new EchoHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                calls.incrementAndGet();
+                response.addHeader("Set-Cookie", "session=" + calls.get());
+                super.handle(target, baseRequest, request, response);
+            }
+        });
+        countingBackend.start();
+        var handler = new ProxyHandler(10, "http://localhost:" + localPort(countingBackend), wss, new BigInteger("734eaf87f23dae80", 16));
+        handler.setAsyncMode(true);
+        handler.setResponseCache(new ResponseCache(1024 * 1024, Map.of(
+                "GetServiceProviderServiceListRequest", 60_000L, "FindServiceProvider", 60_000L)));
+        ProxyServer proxyServer = new ProxyServer(handler, 10, "localhost", 0);
+        handler.startClient();
+        proxyServer.start();
+        try {
+            String request = tools.readResourceFile("SoapInputMessage.xml");
+            String first = null;
+            for (int i = 0; i < 3; i++) {
+                var response = client.POST("http://localhost:" + localPort(proxyServer.server) + "/some/service")
+                        .body(new StringRequestContent("text/xml", request))
+                        .send();
+                Assertions.assertEquals(200, response.getStatus());
+                if (first == null) {
+                    first = response.getContentAsString();
+                    Assertions.assertEquals("session=1", response.getHeaders().get("Set-Cookie"));
+                } else {
+                    Assertions.assertEquals(first, response.getContentAsString());
+                    // the cookie of the first client is not replayed to the others
+                    Assertions.assertNull(response.getHeaders().get("Set-Cookie"));
+                }
+            }
+            Assertions.assertEquals(1, calls.get());
+            Assertions.assertTrue(handler.getMetrics().toPrometheus().contains("wssproxy_cache_hits_total 2\n"));
+
+            // a SOAPAction that matches the operation in the Body is answered from the cache
+            client.POST("http://localhost:" + localPort(proxyServer.server) + "/some/service")
+                    .headers(headers -> headers.put("SOAPAction", "\"GetServiceProviderServiceListRequest\""))
+                    .body(new StringRequestContent("text/xml", request))
+                    .send();
+            Assertions.assertEquals(1, calls.get());
+
+            // a SOAPAction that does not match the Body is not cached, even if it names a cacheable operation
+            for (String soapAction : List.of("FindServiceProvider", "UpdateServiceProvider")) {
+                for (int i = 0; i < 2; i++) {
+                    client.POST("http://localhost:" + localPort(proxyServer.server) + "/some/service")
+                            .headers(headers -> headers.put("SOAPAction", "\"" + soapAction + "\""))
+                            .body(new StringRequestContent("text/xml", request))
+                            .send();
+                }
+            }
+            Assertions.assertEquals(5, calls.get());
+        } finally {
+            proxyServer.stop();
+            handler.stopClient();
+            countingBackend.stop();
+        }
+    }
+
+    @Test
+    public void testCompressedRequestAboveReadAheadLimit() throws Exception {
+        var handler = new ProxyHandler(10, "http://localhost:" + localPort(backend), wss, new BigInteger("734eaf87f23dae80", 16));
+        ResponseCache responseCache = new ResponseCache(1024 * 1024, Map.of("GetServiceProviderServiceListRequest", 60_000L));
+        handler.setResponseCache(responseCache);
+        ProxyServer proxyServer = new ProxyServer(handler, 10, "localhost", 0);
+        handler.startClient();
+        proxyServer.start();
+        try {
+            // a small compressed body that decodes to more than the read-ahead limit
+            String name = "x".repeat(ProxyHandler.MAX_CACHEABLE_REQUEST_BYTES * 4);
+            byte[] message = tools.readResourceFile("SoapInputMessage.xml").replace("POKE", name).getBytes(StandardCharsets.UTF_8);
+            byte[] request = TestTools.gzip(message);
+            Assertions.assertTrue(request.length < ProxyHandler.MAX_CACHEABLE_REQUEST_BYTES);
+
+            var response = client.POST("http://localhost:" + localPort(proxyServer.server) + "/some/service")
+                    .headers(headers -> headers.put("Content-Encoding", "gzip"))
+                    .body(new BytesRequestContent("text/xml", request))
+                    .send();
+
+            Assertions.assertEquals(200, response.getStatus());
+            var responseDoc = XmlTools.parseXML(response.getContent());
+            Assertions.assertTrue(tools.newXpath().evaluateExpression("count(//soapenv:Header/wsse:Security/ds:Signature) = 1", responseDoc, Boolean.class));
+            Assertions.assertTrue(response.getContentAsString().contains(name));
+            // signed from the stream, not looked up or stored in the cache
+            Assertions.assertEquals(0, responseCache.getStats().entries());
+        } finally {
+            proxyServer.stop();
+            handler.stopClient();
+        }
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        int requests = 8;
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        Server slowBackend = new Server(0);
+        slowBackend.setHandler(new EchoHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                calls.incrementAndGet();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.handle(target, baseRequest, request, response);
+            }
+        });
+        slowBackend.start();
+        var handler = new ProxyHandler(10, "http://localhost:" + localPort(slowBackend), wss, new BigInteger("734eaf87f23dae80", 16));
+        handler.setAsyncMode(true);
+        SingleFlight singleFlight = new SingleFlight(Set.of("GetServiceProviderServiceListRequest", "FindServiceProvider"));
+        handler.setSingleFlight(singleFlight);
+        ProxyServer proxyServer = new ProxyServer(handler, 10, "localhost", 0);
+        handler.startClient();
+        proxyServer.start();
+        try {
+            String request = tools.readResourceFile("SoapInputMessage.xml");
+            List<FutureResponseListener> responses = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                var post = client.POST("http://localhost:" + localPort(proxyServer.server) + "/some/service")
+                        .body(new StringRequestContent("text/xml", request));
+                var listener = new FutureResponseListener(post);
+                post.send(listener);
+                responses.add(listener);
+            }
+            // the same body with a SOAPAction that does not match it is not coalesced, even if it names a coalesced operation
+            var other = client.POST("http://localhost:" + localPort(proxyServer.server) + "/some/service")
+                    .headers(headers -> headers.put("SOAPAction", "\"FindServiceProvider\""))
+                    .body(new StringRequestContent("text/xml", request));
+            var otherListener = new FutureResponseListener(other);
+            other.send(otherListener);
+            for (int i = 0; i < 100 && (singleFlight.getStats().followers() < requests - 1 || calls.get() < 2); i++) {
+                Thread.sleep(50);
+            }
+            release.countDown();
+
+            String first = responses.get(0).get().getContentAsString();
+            for (var response : responses) {
+                Assertions.assertEquals(200, response.get().getStatus());
+                Assertions.assertEquals(first, response.get().getContentAsString());
+            }
+            Assertions.assertEquals(200, otherListener.get().getStatus());
+            Assertions.assertEquals(2, calls.get());
+            Assertions.assertEquals(new SingleFlight.Stats(1, requests - 1, 0), singleFlight.getStats());
+            Assertions.assertTrue(handler.getMetrics().toPrometheus().contains("wssproxy_coalescing_ratio 0.8750\n"));
+        } finally {
+            release.countDown();
+            proxyServer.stop();
+            handler.stopClient();
+            slowBackend.stop();
+        }
+    }
+
+    @Test
+    public void testRequestTimeout() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Server slowBackend = new Server(0);
+        slowBackend.setHandler(new EchoHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.handle(target, baseRequest, request, response);
+            }
+        });
+        slowBackend.start();
+        try {
+            for (boolean asyncMode : new boolean[]{false, true}) {
+                var handler = new ProxyHandler(10, "http://localhost:" + localPort(slowBackend), wss, new BigInteger("734eaf87f23dae80", 16));
+                handler.setAsyncMode(asyncMode);
+                handler.setRequestTimeoutMillis(300);
+                ProxyServer proxyServer = new ProxyServer(handler, 10, "localhost", 0);
+                handler.startClient();
+                proxyServer.start();
+                try {
+                    var response = client.POST("http://localhost:" + localPort(proxyServer.server) + "/some/service")
+                            .body(new StringRequestContent("text/xml", tools.readResourceFile("SoapInputMessage.xml")))
+                            .send();
+                    Assertions.assertEquals(504, response.getStatus(), "async " + asyncMode);
+                    Assertions.assertTrue(response.getContentAsString().contains("Fault"));
+                } finally {
+                    proxyServer.stop();
+                    handler.stopClient();
+                }
+            }
+        } finally {
+            release.countDown();
+            slowBackend.stop();
+        }
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        Set<String> requestEncodings = ConcurrentHashMap.newKeySet();
+        Server gzipBackend = new Server(0);
+        gzipBackend.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                String encoding = request.getHeader("Content-Encoding");
+                requestEncodings.add(String.valueOf(encoding));
+                byte[] body = Compression.decode(encoding, request.getInputStream()).readAllBytes();
+                // a compressed response, decoded by the proxy before verification
+                response.setContentType("text/xml; charset=utf-8");
+                response.setHeader("Content-Encoding", "gzip");
+                response.getOutputStream().write(TestTools.gzip(body));
+                baseRequest.setHandled(true);
+            }
+        });
+        gzipBackend.start();
+        var handler = new ProxyHandler(10, "http://localhost:" + localPort(gzipBackend), wss, new BigInteger("734eaf87f23dae80", 16));
+        handler.setBackendCompression(1);
+        ProxyServer proxyServer = new ProxyServer(handler, 10, "localhost", 0);
+        proxyServer.setCompression(16);
+        handler.startClient();
+        proxyServer.start();
+        // a client that does not decode the response itself
+        HttpClient rawClient = new HttpClient();
+        rawClient.start();
+        // the decoders are added when the client starts
+        rawClient.getContentDecoderFactories().clear();
+        try {
+            byte[] request = TestTools.gzip(tools.readResourceFile("SoapInputMessage.xml").getBytes(StandardCharsets.UTF_8));
+            var response = rawClient.POST("http://localhost:" + localPort(proxyServer.server) + "/some/service")
+                    .headers(headers -> headers
+                            .put("Content-Encoding", "gzip")
+                            .put("Accept-Encoding", "gzip"))
+                    .body(new BytesRequestContent("text/xml", request))
+                    .send();
+
+            Assertions.assertEquals(200, response.getStatus());
+            Assertions.assertEquals("gzip", response.getHeaders().get("Content-Encoding"));
+            byte[] decoded = new GZIPInputStream(new ByteArrayInputStream(response.getContent())).readAllBytes();
+            Assertions.assertTrue(tools.newXpath().evaluateExpression("count(//soapenv:Header/wsse:Security/ds:Signature) = 1",
+                    XmlTools.parseXML(decoded), Boolean.class));
+            Assertions.assertEquals(Set.of("gzip"), requestEncodings);
+        } finally {
+            rawClient.stop();
+            proxyServer.stop();
+            handler.stopClient();
+            gzipBackend.stop();
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package nl.odido.eai.wssclient;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class TestProxyMetrics {
+
+    @Test
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 100L);
+        }
+
+        Assertions.assertEquals(1000, histogram.getCount());
+        Assertions.assertEquals(50_050_000, histogram.getSum());
+        Assertions.assertEquals(50_000, histogram.getPercentile(50), 50_000 * 0.02);
+        Assertions.assertEquals(99_000, histogram.getPercentile(99), 99_000 * 0.02);
+
+        long[] cumulative = histogram.getCumulativeCounts(new long[]{1_000, 10_000, 1_000_000});
+        Assertions.assertEquals(10, cumulative[0], 1);
+        Assertions.assertEquals(100, cumulative[1], 1);
+        Assertions.assertEquals(1000, cumulative[2]);
+        Assertions.assertEquals(1000, cumulative[3]);
+    }
+
+    @Test
+    public void testPrometheus() {
+        ProxyMetrics metrics = new ProxyMetrics();
+        metrics.setAdmission(() -> new AdmissionControl.Stats(2, 1, 10, 3));
+        metrics.recordResponse(200);
+        metrics.recordResponse(200);
+        metrics.recordResponse(503);
+        metrics.getHistogram(ProxyMetrics.Stage.SIGN).record(1_500);
+
+        String text = metrics.toPrometheus();
+
+        Assertions.assertTrue(text.contains("wssproxy_stage_duration_seconds_bucket{stage=\"sign\",le=\"0.001\"} 0\n"));
+        Assertions.assertTrue(text.contains("wssproxy_stage_duration_seconds_bucket{stage=\"sign\",le=\"0.0025\"} 1\n"));
+        Assertions.assertTrue(text.contains("wssproxy_stage_duration_seconds_bucket{stage=\"sign\",le=\"+Inf\"} 1\n"));
+        Assertions.assertTrue(text.contains("wssproxy_stage_duration_seconds_sum{stage=\"sign\"} 0.0015\n"));
+        Assertions.assertTrue(text.contains("wssproxy_stage_duration_seconds_count{stage=\"verify\"} 0\n"));
+        Assertions.assertTrue(text.contains("wssproxy_responses_total{status=\"200\"} 2\n"));
+        Assertions.assertTrue(text.contains("wssproxy_responses_total{status=\"503\"} 1\n"));
+        Assertions.assertTrue(text.contains("wssproxy_requests_in_flight 2\n"));
+        Assertions.assertTrue(text.contains("wssproxy_requests_shed_total 3\n"));
+    }
+}
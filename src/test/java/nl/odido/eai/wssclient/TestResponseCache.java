@@ -0,0 +1,89 @@
+package nl.odido.eai.wssclient;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+public class TestResponseCache {
+
+    private static ResponseCache.CachedResponse response(String body) {
+        return new ResponseCache.CachedResponse(200, HttpFields.EMPTY, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testGetAndPut() {
+        ResponseCache cache = new ResponseCache(1024 * 1024, Map.of("GetSubscription", 60_000L));
+        String key = ResponseCache.key("http://a", "/services/a", "Get", bytes("<request/>"));
+        Assertions.assertNotEquals(key, ResponseCache.key("http://a", "/services/b", "Get", bytes("<request/>")));
+        Assertions.assertNotEquals(key, ResponseCache.key("http://a", "/services/a", "Get", bytes("<request />")));
+        Assertions.assertNotEquals(key, ResponseCache.key("http://a", "/services/a", "Find", bytes("<request/>")));
+        Assertions.assertNotEquals(key, ResponseCache.key("http://b", "/services/a", "Get", bytes("<request/>")));
+        Assertions.assertTrue(cache.isCacheable("GetSubscription"));
+        Assertions.assertFalse(cache.isCacheable("UpdateSubscription"));
+
+        Assertions.assertNull(cache.get(key));
+        cache.put(key, "GetSubscription", response("<response/>"));
+        cache.put("other", "UpdateSubscription", response("<response/>"));
+
+        Assertions.assertArrayEquals(bytes("<response/>"), cache.get(key).body());
+        Assertions.assertNull(cache.get("other"));
+        ResponseCache.Stats stats = cache.getStats();
+        Assertions.assertEquals(1, stats.hits());
+        Assertions.assertEquals(2, stats.misses());
+        Assertions.assertEquals(1, stats.entries());
+
+        cache.invalidate(key);
+        Assertions.assertNull(cache.get(key));
+        cache.put(key, "GetSubscription", response("<response/>"));
+
+        cache.invalidateAll();
+        Assertions.assertNull(cache.get(key));
+        Assertions.assertEquals(0, cache.getStats().bytes());
+    }
+
+    @Test
+    public void testExpiry() {
+        ResponseCache cache = new ResponseCache(1024 * 1024, Map.of("Expired", -1L));
+        cache.put("key", "Expired", response("<response/>"));
+        Assertions.assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void testFrequentEntriesStay() {
+        // room for 16 entries of 600 bytes (88 bytes of body, 512 of overhead)
+        ResponseCache cache = new ResponseCache(10_000, Map.of("Get", 60_000L));
+        String body = "x".repeat(88);
+        for (int i = 0; i < 10; i++) {
+            for (int n = 0; n < 15; n++) {
+                cache.get("hot" + i);
+            }
+            cache.put("hot" + i, "Get", response(body));
+        }
+        for (int i = 0; i < 100; i++) {
+            cache.get("cold" + i);
+            cache.put("cold" + i, "Get", response(body));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertNotNull(cache.get("hot" + i), "hot" + i);
+        }
+        ResponseCache.Stats stats = cache.getStats();
+        Assertions.assertEquals(16, stats.entries());
+        Assertions.assertEquals(94, stats.evictions());
+        Assertions.assertTrue(stats.bytes() <= 10_000);
+    }
+
+    @Test
+    public void testLargeResponseNotCached() {
+        ResponseCache cache = new ResponseCache(16 * 1024, Map.of("Get", 60_000L));
+        cache.put("large", "Get", response("x".repeat(2048)));
+        Assertions.assertNull(cache.get("large"));
+    }
+}
@@ -0,0 +1,46 @@
+package nl.odido.eai.wssclient;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+public class TestSingleFlight {
+
+    @Test
+    public void testCoalescing() throws Exception {
+        SingleFlight singleFlight = new SingleFlight(Set.of("GetSubscription"));
+        Assertions.assertTrue(singleFlight.isCoalesced("GetSubscription"));
+        Assertions.assertFalse(singleFlight.isCoalesced("UpdateSubscription"));
+
+        SingleFlight.Call leader = singleFlight.join("key");
+        SingleFlight.Call follower = singleFlight.join("key");
+        SingleFlight.Call other = singleFlight.join("other");
+        Assertions.assertTrue(leader.isLeader());
+        Assertions.assertFalse(follower.isLeader());
+        Assertions.assertTrue(other.isLeader());
+        Assertions.assertEquals(new SingleFlight.Stats(2, 1, 2), singleFlight.getStats());
+
+        var response = new ResponseCache.CachedResponse(200, HttpFields.EMPTY, "<response/>".getBytes(StandardCharsets.UTF_8));
+        leader.complete(response);
+        Assertions.assertSame(response, follower.result().get());
+
+        // a completed call is not joined again
+        Assertions.assertTrue(singleFlight.join("key").isLeader());
+    }
+
+    @Test
+    public void testFailure() {
+        SingleFlight singleFlight = new SingleFlight(Set.of("GetSubscription"));
+        SingleFlight.Call leader = singleFlight.join("key");
+        SingleFlight.Call follower = singleFlight.join("key");
+
+        leader.fail(new IllegalStateException("back-end down"));
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> follower.result().get());
+        Assertions.assertEquals("back-end down", e.getCause().getMessage());
+        Assertions.assertEquals(0, singleFlight.getStats().inFlight());
+    }
+}
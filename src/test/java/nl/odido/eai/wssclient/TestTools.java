@@ -1,8 +1,10 @@
 package nl.odido.eai.wssclient;
 
 import javax.xml.xpath.XPath;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
 
 public class TestTools {
 
@@ -17,6 +19,14 @@ public class TestTools {
         }
     }
 
+    static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
     XPath newXpath() {
         var factory = new net.sf.saxon.xpath.XPathFactoryImpl();
         var xpath = factory.newXPath();
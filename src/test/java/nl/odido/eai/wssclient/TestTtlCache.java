@@ -0,0 +1,35 @@
+package nl.odido.eai.wssclient;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class TestTtlCache {
+
+    @Test
+    public void testSizeEviction() {
+        TtlCache<String, String> cache = new TtlCache<>(2, 60_000);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+
+        Assertions.assertEquals(2, cache.getStats().size());
+        Assertions.assertNull(cache.get("a"));
+        Assertions.assertEquals("3", cache.get("c"));
+        Assertions.assertEquals(1, cache.getStats().hits());
+        Assertions.assertEquals(1, cache.getStats().misses());
+    }
+
+    @Test
+    public void testExpiry() {
+        TtlCache<String, String> cache = new TtlCache<>(10, 60_000);
+        cache.put("expired", "1", System.currentTimeMillis() - 1);
+        cache.put("valid", "2");
+
+        Assertions.assertNull(cache.get("expired"));
+        Assertions.assertEquals("2", cache.get("valid"));
+
+        cache.invalidateAll();
+        Assertions.assertNull(cache.get("valid"));
+    }
+
+}
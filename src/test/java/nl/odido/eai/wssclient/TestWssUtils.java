@@ -1,12 +1,24 @@
 package nl.odido.eai.wssclient;
 
+import org.apache.wss4j.common.ext.WSSecurityException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class TestWssUtils {
 
@@ -55,4 +67,187 @@ public class TestWssUtils {
         Assertions.assertEquals(serials, Set.of(new BigInteger("734eaf87f23dae80", 16)));
     }
 
+    @Test
+    public void testSignAndValidateBytes() throws Exception {
+        var inputXml = tools.readResourceFile("SoapInputMessage.xml").getBytes(StandardCharsets.UTF_8);
+
+        byte[] signed = wss.signWSS(inputXml);
+
+        var wssResult = wss.verifyWSS(new ByteArrayInputStream(signed));
+        Assertions.assertEquals(Set.of(new BigInteger("734eaf87f23dae80", 16)), WssUtils.getSignerCertificateSerials(wssResult));
+        Assertions.assertEquals(WssUtils.getSignerCertificateSerials(wssResult),
+                WssUtils.getSignerCertificateSerials(wss.verifyWSS(new String(signed, StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void testStreamingSignature() throws Exception {
+        var inputXml = tools.readResourceFile("SoapInputMessage.xml").getBytes(StandardCharsets.UTF_8);
+        var signed = new ByteArrayOutputStream();
+
+        wss.signWSSStreaming(new ByteArrayInputStream(inputXml), signed);
+
+        var signedDoc = XmlTools.parseXML(signed.toByteArray());
+        var xpath = tools.newXpath();
+        Assertions.assertTrue(xpath.evaluateExpression("count(//soapenv:Header/wsse:Security/wsse:BinarySecurityToken) = 1", signedDoc, Boolean.class));
+        Assertions.assertTrue(xpath.evaluateExpression("count(//soapenv:Header/wsse:Security/ds:Signature/ds:SignedInfo/ds:Reference) = 2", signedDoc, Boolean.class));
+        var wssResult = wss.verifyWSS(signed.toByteArray());
+        Assertions.assertEquals(Set.of(new BigInteger("734eaf87f23dae80", 16)), WssUtils.getSignerCertificateSerials(wssResult));
+    }
+
+    @Test
+    public void testStreamingVerification() throws Exception {
+        var inputXml = tools.readResourceFile("SoapInputMessage.xml");
+        var signed = wss.signWSS(inputXml).getBytes(StandardCharsets.UTF_8);
+
+        var wssResult = wss.verifyWSSStreaming(new ByteArrayInputStream(signed));
+        Assertions.assertEquals(Set.of(new BigInteger("734eaf87f23dae80", 16)), WssUtils.getSignerCertificateSerials(wssResult));
+
+        var tampered = new String(signed, StandardCharsets.UTF_8).replace("POKE", "EKOP").getBytes(StandardCharsets.UTF_8);
+        Assertions.assertThrows(WSSecurityException.class, () -> wss.verifyWSSStreaming(new ByteArrayInputStream(tampered)));
+        Assertions.assertThrows(Exception.class,
+                () -> wss.verifyWSSStreaming(new ByteArrayInputStream(inputXml.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void testStreamingThreshold() throws Exception {
+        var inputXml = tools.readResourceFile("SoapInputMessage.xml").getBytes(StandardCharsets.UTF_8);
+        long threshold = wss.getStreamingThreshold();
+        try {
+            wss.setStreamingThreshold(inputXml.length - 1);
+            var wssResult = wss.verifyWSS(wss.signWSS(inputXml));
+            Assertions.assertEquals(Set.of(new BigInteger("734eaf87f23dae80", 16)), WssUtils.getSignerCertificateSerials(wssResult));
+        } finally {
+            wss.setStreamingThreshold(threshold);
+        }
+    }
+
+    @Test
+    public void testConcurrentSigning() throws Exception {
+        var inputXml = tools.readResourceFile("SoapInputMessage.xml");
+        int cores = Math.max(2, Runtime.getRuntime().availableProcessors());
+        int messages = 200;
+
+        for (int threads : new int[] {1, cores}) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<String>> results = new ArrayList<>();
+                for (int i = 0; i < messages; i++) {
+                    results.add(executor.submit(() -> wss.signWSS(inputXml)));
+                }
+                var xpath = tools.newXpath();
+                for (var result : results) {
+                    String signed = result.get();
+                    var signedDoc = XmlTools.parseXML(signed);
+                    Assertions.assertTrue(xpath.evaluateExpression("count(//soapenv:Header/wsse:Security/ds:Signature/ds:SignatureValue) = 1", signedDoc, Boolean.class));
+                    // every concurrently signed message must carry a valid signature
+                    Assertions.assertEquals(Set.of("CN=testclient.acme.nl,OU=IT,O=ACME,L=Urk,ST=Flevoland,C=NL"),
+                            WssUtils.getSignerCertificateSubjects(wss.verifyWSS(signed)));
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentVerification() throws Exception {
+        var inputXml = tools.readResourceFile("SoapInputMessage.xml");
+        var signed = wss.signWSS(inputXml);
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Set<String>>> results = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                results.add(executor.submit(() -> WssUtils.getSignerCertificateSubjects(wss.verifyWSS(signed))));
+            }
+            for (var result : results) {
+                Assertions.assertEquals(Set.of("CN=testclient.acme.nl,OU=IT,O=ACME,L=Urk,ST=Flevoland,C=NL"), result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testTrustCache() throws Exception {
+        var inputXml = tools.readResourceFile("SoapInputMessage.xml");
+        var signed = wss.signWSS(inputXml);
+
+        wss.verifyWSS(signed);
+        var before = wss.getTrustCacheStats();
+        wss.verifyWSS(signed);
+        var after = wss.getTrustCacheStats();
+
+        Assertions.assertEquals(before.hits() + 1, after.hits());
+        Assertions.assertEquals(before.misses(), after.misses());
+        Assertions.assertTrue(wss.getCertificateCacheStats().hits() > 0);
+    }
+
+    @Test
+    public void testCachedTrustFailure() throws Exception {
+        var keystore = KeyStore.getInstance("JKS");
+        try (var in = new FileInputStream("./src/test/resources/wss_keystore.jks")) {
+            keystore.load(in, "secret".toCharArray());
+        }
+        var cert = (X509Certificate) keystore.getCertificate("wsscert");
+        var emptyTruststore = KeyStore.getInstance("JKS");
+        emptyTruststore.load(null, null);
+        var merlin = new CachingMerlin(emptyTruststore, new TtlCache<>(10, 60_000), new TtlCache<>(10, 60_000));
+        var certs = new X509Certificate[]{cert};
+
+        var first = Assertions.assertThrows(WSSecurityException.class, () -> merlin.verifyTrust(certs, false, null, null));
+        var second = Assertions.assertThrows(WSSecurityException.class, () -> merlin.verifyTrust(certs, false, null, null));
+        var third = Assertions.assertThrows(WSSecurityException.class, () -> merlin.verifyTrust(certs, false, null, null));
+        // the cached failure is thrown as a new exception per call, with the message of the original one
+        Assertions.assertNotSame(second, third);
+        Assertions.assertEquals(first.getErrorCode(), second.getErrorCode());
+        Assertions.assertEquals(first.getMessage(), second.getCause().getMessage());
+    }
+
+    @Test
+    public void testTemplateSigning() throws Exception {
+        var inputXml = tools.readResourceFile("SoapInputMessage.xml").getBytes(StandardCharsets.UTF_8);
+        Assertions.assertTrue(wss.isTemplateSigning());
+
+        byte[] signed = wss.signWSS(inputXml);
+        byte[] signedByWss4j;
+        wss.setTemplateSigning(false);
+        try {
+            signedByWss4j = wss.signWSS(inputXml);
+        } finally {
+            wss.setTemplateSigning(true);
+        }
+
+        var xpath = tools.newXpath();
+        for (byte[] message : new byte[][] {signed, signedByWss4j}) {
+            var signedDoc = XmlTools.parseXML(message);
+            Assertions.assertTrue(xpath.evaluateExpression("count(//soapenv:Header/wsse:Security/wsse:BinarySecurityToken) = 1", signedDoc, Boolean.class));
+            Assertions.assertTrue(xpath.evaluateExpression("count(//soapenv:Header/wsse:Security/wsu:Timestamp) = 1", signedDoc, Boolean.class));
+            Assertions.assertTrue(xpath.evaluateExpression("count(//soapenv:Header/wsse:Security/ds:Signature/ds:SignedInfo/ds:Reference) = 2", signedDoc, Boolean.class));
+            var idRef = xpath.evaluateExpression("//ds:Signature/ds:KeyInfo/wsse:SecurityTokenReference/wsse:Reference/@URI", signedDoc, String.class);
+            Assertions.assertEquals("#" + xpath.evaluateExpression("//wsse:BinarySecurityToken/@wsu:Id", signedDoc, String.class), idRef);
+            Assertions.assertEquals(Set.of(new BigInteger("734eaf87f23dae80", 16)), WssUtils.getSignerCertificateSerials(wss.verifyWSS(message)));
+            Assertions.assertEquals(Set.of(new BigInteger("734eaf87f23dae80", 16)),
+                    WssUtils.getSignerCertificateSerials(wss.verifyWSSStreaming(new ByteArrayInputStream(message))));
+        }
+
+        var tampered = new String(signed, StandardCharsets.UTF_8).replace("POKE", "EKOP");
+        Assertions.assertThrows(WSSecurityException.class, () -> wss.verifyWSS(tampered));
+    }
+
+    @Test
+    public void testTemplateSigningFallback() throws Exception {
+        // a Body with an id is not recognised by the template signer: the WSS4J signer keeps the id
+        var inputXml = tools.readResourceFile("SoapInputMessage.xml").replace("<soapenv:Body>",
+                "<soapenv:Body xmlns:wsu=\"http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-utility-1.0.xsd\" wsu:Id=\"body-1\">");
+
+        var signed = wss.signWSS(inputXml);
+
+        var signedDoc = XmlTools.parseXML(signed);
+        var xpath = tools.newXpath();
+        Assertions.assertTrue(xpath.evaluateExpression("count(//ds:Reference[@URI = '#body-1']) = 1", signedDoc, Boolean.class));
+        Assertions.assertEquals(Set.of(new BigInteger("734eaf87f23dae80", 16)), WssUtils.getSignerCertificateSerials(wss.verifyWSS(signed)));
+    }
+
 }
@@ -0,0 +1,95 @@
+package nl.odido.eai.wssclient;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.xpath.XPathConstants;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+public class TestXmlTools {
+
+    private final TestTools tools = new TestTools();
+
+    @Test
+    public void testSoapFault() throws Exception {
+        var fault = XmlTools.parseXML("""
+                <SOAP-ENV:Envelope xmlns:SOAP-ENV="http://schemas.xmlsoap.org/soap/envelope/">
+                  <SOAP-ENV:Body>
+                    <SOAP-ENV:Fault><faultcode>SOAP-ENV:Server</faultcode></SOAP-ENV:Fault>
+                  </SOAP-ENV:Body>
+                </SOAP-ENV:Envelope>
+                """);
+        var message = XmlTools.parseXML(tools.readResourceFile("SoapInputMessage.xml"));
+        var otherNamespace = XmlTools.parseXML("<Envelope><Body><Fault/></Body></Envelope>");
+
+        Assertions.assertTrue(XmlTools.isSoapFault(fault));
+        Assertions.assertFalse(XmlTools.isSoapFault(message));
+        Assertions.assertFalse(XmlTools.isSoapFault(otherNamespace));
+    }
+
+    @Test
+    public void testSoapBodyElement() throws Exception {
+        String message = """
+                <SOAP-ENV:Envelope xmlns:SOAP-ENV="http://schemas.xmlsoap.org/soap/envelope/">
+                  <SOAP-ENV:Header><Ignored/></SOAP-ENV:Header>
+                  <SOAP-ENV:Body>
+                    <ns:GetSubscription xmlns:ns="urn:test"><ns:id>1</ns:id></ns:GetSubscription>
+                  </SOAP-ENV:Body>
+                </SOAP-ENV:Envelope>
+                """;
+        Assertions.assertEquals("GetSubscription",
+                XmlTools.getSoapBodyElement(new ByteArrayInputStream(message.getBytes(StandardCharsets.UTF_8))));
+        Assertions.assertNull(XmlTools.getSoapBodyElement(new ByteArrayInputStream(
+                "<Envelope><Body><GetSubscription/></Body></Envelope>".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void testSerializers() throws Exception {
+        var wss = WssUtils.newWssUtils("./src/test/resources/wss_keystore.jks", "secret", "wsscert",
+                "./src/test/resources/wss_truststore.jks", "secret", Collections.emptyList());
+        var signed = XmlTools.parseXML(wss.signWSS(tools.readResourceFile("SoapInputMessage.xml")));
+
+        var direct = new ByteArrayOutputStream();
+        XmlTools.directSerializer.serialize(signed, direct);
+        var saxon = new ByteArrayOutputStream();
+        XmlTools.transformerSerializer.serialize(signed, saxon);
+
+        for (var output : List.of(direct.toByteArray(), saxon.toByteArray())) {
+            Assertions.assertEquals(Set.of(new BigInteger("734eaf87f23dae80", 16)),
+                    WssUtils.getSignerCertificateSerials(wss.verifyWSS(output)));
+        }
+    }
+
+    @Test
+    public void testDirectSerializerEscaping() throws Exception {
+        var xml = "<a:r xmlns:a=\"urn:a\" t=\"x&#9;y&#10;&quot;&lt;&#13;\"><b>t&amp;&lt;&gt;\u00e9\u20ac\ud83d\ude00&#13;</b><![CDATA[<x>]]></a:r>";
+        var doc = XmlTools.parseXML(xml);
+
+        var out = new ByteArrayOutputStream();
+        XmlTools.directSerializer.serialize(doc, out);
+        var reparsed = XmlTools.parseXML(out.toByteArray());
+
+        Assertions.assertEquals(doc.getDocumentElement().getAttribute("t"), reparsed.getDocumentElement().getAttribute("t"));
+        Assertions.assertEquals(doc.getDocumentElement().getTextContent(), reparsed.getDocumentElement().getTextContent());
+        Assertions.assertEquals("urn:a", reparsed.getDocumentElement().getNamespaceURI());
+    }
+
+    @Test
+    public void testCompiledXPath() throws Exception {
+        var message = XmlTools.parseXML(tools.readResourceFile("SoapInputMessage.xml"));
+
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertEquals("POKE", XmlTools.evaluateXPath("//soapenv:Body//serviceProviderName", message, XPathConstants.STRING));
+            Assertions.assertEquals(Boolean.TRUE, XmlTools.evaluateXPath("count(/SOAP-ENV:Envelope/SOAP-ENV:Body) = 1", message, XPathConstants.BOOLEAN));
+        }
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> XmlTools.evaluateXPath("//soapenv:Body[", message, XPathConstants.NODE));
+    }
+
+}
@@ -0,0 +1,140 @@
+package nl.odido.eai.wssclient;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.util.StringRequestContent;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the proxy throughput with platform thread pools (blocking and async mode) and with virtual threads,
+ * against a slow back-end. Not a unit test; run with Java 21+ to include the virtual thread mode:
+ * <pre>
+ * java -cp target/classes:target/test-classes:{dependencies} nl.odido.eai.wssclient.ThreadModeBenchmark [concurrency] [requests] [backend delay ms] [runs]
+ * </pre>
+ */
+public class ThreadModeBenchmark {
+
+    /**
+     * Back-end that echoes the request after a delay, without holding a thread
+     */
+    static class SlowEchoHandler extends AbstractHandler {
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        private final long delayMillis;
+
+        SlowEchoHandler(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        protected void doStop() throws Exception {
+            scheduler.shutdownNow();
+            super.doStop();
+        }
+
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+            byte[] body = request.getInputStream().readAllBytes();
+            AsyncContext async = request.startAsync();
+            async.setTimeout(0);
+            baseRequest.setHandled(true);
+            scheduler.schedule(() -> {
+                try {
+                    response.setContentType("text/xml; charset=utf-8");
+                    response.getOutputStream().write(body);
+                } catch (IOException ignored) {
+                    // the client sees the failure
+                } finally {
+                    async.complete();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        long delayMillis = args.length > 2 ? Long.parseLong(args[2]) : 500;
+        String runs = args.length > 3 ? args[3] : "platform-blocking,platform-async,virtual-blocking";
+
+        WssUtils wss = WssUtils.newWssUtils("./src/test/resources/wss_keystore.jks", "secret", "wsscert",
+                "./src/test/resources/wss_truststore.jks", "secret", Collections.emptyList());
+        String body = new TestTools().readResourceFile("SoapInputMessage.xml");
+
+        Server backend = new Server(0);
+        backend.setHandler(new SlowEchoHandler(delayMillis));
+        backend.start();
+        String backendUrl = "http://localhost:" + TestProxyHandler.localPort(backend);
+
+        HttpClient client = new HttpClient();
+        client.setMaxConnectionsPerDestination(concurrency);
+        client.setMaxRequestsQueuedPerDestination(requests);
+        client.start();
+
+        try {
+            for (String run : runs.split(",")) {
+                String[] modes = run.split("-");
+                run(run, ThreadPools.Mode.valueOf(modes[0].toUpperCase()), "async".equals(modes[1]),
+                        wss, backendUrl, client, body, concurrency, requests);
+            }
+        } finally {
+            client.stop();
+            backend.stop();
+        }
+    }
+
+    private static void run(String name, ThreadPools.Mode mode, boolean async, WssUtils wss, String backendUrl,
+                            HttpClient client, String body, int concurrency, int requests) throws Exception {
+        ProxyHandler handler = new ProxyHandler(60, backendUrl, wss, null);
+        handler.setThreadMode(mode);
+        handler.setAsyncMode(async);
+        handler.setMaxInFlight(concurrency);
+        ProxyServer proxyServer = new ProxyServer(handler, 60, "localhost", 0, mode);
+        handler.startClient();
+        proxyServer.start();
+        String url = "http://localhost:" + TestProxyHandler.localPort(proxyServer.server) + "/bench";
+
+        Semaphore outstanding = new Semaphore(concurrency);
+        AtomicInteger ok = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            outstanding.acquire();
+            client.POST(url)
+                    .body(new StringRequestContent("text/xml", body))
+                    .send(result -> {
+                        if (result.isSucceeded() && result.getResponse().getStatus() == 200) {
+                            ok.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                            String reason = result.isFailed() ? result.getFailure().getClass().getSimpleName() : "HTTP " + result.getResponse().getStatus();
+                            failures.computeIfAbsent(reason, r -> new AtomicInteger()).incrementAndGet();
+                        }
+                        outstanding.release();
+                    });
+        }
+        outstanding.acquire(concurrency);
+        long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+
+        System.out.printf("%-20s %5d requests, concurrency %4d: %6d ms, %6d req/s, %5d failed %s%n",
+                name, requests, concurrency, elapsedMs, ok.get() * 1000L / elapsedMs, failed.get(), new TreeMap<>(failures));
+
+        proxyServer.stop();
+        handler.stopClient();
+    }
+}